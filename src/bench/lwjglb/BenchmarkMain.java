@@ -0,0 +1,26 @@
+package bench.lwjglb;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+/**
+ * Runs the engine benchmarks (all of them, or those matching the regexps given as arguments) with the GC profiler,
+ * so allocation rates are reported next to the timings. Equivalent to org.openjdk.jmh.Main with -prof gc.
+ */
+public class BenchmarkMain {
+
+    private BenchmarkMain(){
+        // util class
+    }
+
+    public static void main(String[] args) throws RunnerException{
+        ChainedOptionsBuilder builder = new OptionsBuilder().addProfiler(GCProfiler.class);
+        if (args.length == 0){
+            builder.include("bench\\.lwjglb\\..*");
+        }
+        for (String arg : args){
+            builder.include(arg);
+        }
+        new Runner(builder.build()).run();
+    }
+}
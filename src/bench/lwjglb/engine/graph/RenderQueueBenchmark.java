@@ -0,0 +1,111 @@
+package bench.lwjglb.engine.graph;
+
+import main.lwjglb.engine.graph.*;
+import org.joml.Vector3f;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.*;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+/**
+ * Builds, sorts and walks a frame's render queue, as SceneRender does, over items spread across a few programs,
+ * textures and VAOs. Meshes and textures are created through their GL-free package private constructors (arena
+ * mesh, texture array layer), so no GL context is needed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderQueueBenchmark {
+    private static final int NUM_MATERIALS = 32;
+    private static final int NUM_MESHES = 256;
+    private static final int NUM_TEXTURES = 64;
+    private float[] depths;
+    private Material[] itemMaterials;
+    private Mesh[] itemMeshes;
+    private int[] itemPrograms;
+    private Texture[] itemTextures;
+    @Param({"1000", "10000", "100000"})
+    private int numItems;
+    private RenderQueue renderQueue;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException{
+        Material[] materials = new Material[NUM_MATERIALS];
+        for (int i = 0; i < materials.length; i++){
+            materials[i] = new Material();
+        }
+        Constructor<Mesh> meshConstructor = Mesh.class.getDeclaredConstructor(int.class, int.class, int.class,
+                int[].class, Vector3f.class, Vector3f.class);
+        meshConstructor.setAccessible(true);
+        Mesh[] meshes = new Mesh[NUM_MESHES];
+        for (int i = 0; i < meshes.length; i++){
+            // Arena meshes share a few VAOs
+            meshes[i] = meshConstructor.newInstance(1 + i % 8, i * 1000, i * 3000, new int[]{3000, 1500},
+                    new Vector3f(-1), new Vector3f(1));
+        }
+        Constructor<Texture> textureConstructor = Texture.class.getDeclaredConstructor(String.class,
+                TextureArray.class, int.class);
+        textureConstructor.setAccessible(true);
+        Field textureId = Texture.class.getDeclaredField("textureId");
+        textureId.setAccessible(true);
+        Texture[] textures = new Texture[NUM_TEXTURES];
+        for (int i = 0; i < textures.length; i++){
+            textures[i] = textureConstructor.newInstance("texture-" + i, null, 0);
+            textureId.setInt(textures[i], 1 + i);
+        }
+
+        Random random = new Random(42);
+        depths = new float[numItems];
+        itemMaterials = new Material[numItems];
+        itemMeshes = new Mesh[numItems];
+        itemPrograms = new int[numItems];
+        itemTextures = new Texture[numItems];
+        for (int i = 0; i < numItems; i++){
+            depths[i] = random.nextFloat();
+            itemMaterials[i] = materials[random.nextInt(NUM_MATERIALS)];
+            itemMeshes[i] = meshes[random.nextInt(NUM_MESHES)];
+            itemPrograms[i] = 1 + random.nextInt(2);
+            itemTextures[i] = textures[random.nextInt(NUM_TEXTURES)];
+        }
+        renderQueue = new RenderQueue();
+    }
+
+    @Benchmark
+    public int fillAndSort(){
+        renderQueue.clear();
+        for (int i = 0; i < numItems; i++){
+            renderQueue.add(itemPrograms[i], itemTextures[i], itemMaterials[i], itemMeshes[i], i & 1, i, 1, depths[i]);
+        }
+        renderQueue.sort();
+        return renderQueue.size();
+    }
+
+    // Fill, sort, then read every item back in order and count the state changes, like SceneRender.drawQueue
+    @Benchmark
+    public int fillSortAndWalk(Blackhole blackhole){
+        fillAndSort();
+        int currentTexture = -1;
+        int currentVao = -1;
+        int stateChanges = 0;
+        for (int i = 0; i < renderQueue.size(); i++){
+            Texture texture = renderQueue.getTexture(i);
+            if (texture.getTextureId() != currentTexture){
+                currentTexture = texture.getTextureId();
+                stateChanges++;
+            }
+            Mesh mesh = renderQueue.getMesh(i);
+            if (mesh.getVaoId() != currentVao){
+                currentVao = mesh.getVaoId();
+                stateChanges++;
+            }
+            blackhole.consume(mesh.getNumIndices(renderQueue.getLod(i)));
+            blackhole.consume(renderQueue.getBaseInstance(i));
+            blackhole.consume(renderQueue.getMaterial(i));
+        }
+        return stateChanges;
+    }
+}
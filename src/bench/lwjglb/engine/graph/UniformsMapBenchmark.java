@@ -0,0 +1,65 @@
+package bench.lwjglb.engine.graph;
+
+import main.lwjglb.engine.graph.UniformsMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+/**
+ * Cost of finding uniform locations for a frame's draws: looked up by name in UniformsMap's map, as the String
+ * overloads of setUniform do, against locations kept from createUniform, as the int overloads take them.
+ * The map is filled through reflection instead of createUniform, so no GL context is needed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UniformsMapBenchmark {
+    private static final String[] UNIFORM_NAMES = {"projectionMatrix", "viewMatrix", "modelMatrix", "txtSampler",
+            "material.diffuse", "textureLayer", "drawOffset"};
+    private int[] locations;
+    @Param({"1000", "10000"})
+    private int numDraws;
+    private Map<String, Integer> uniforms;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws ReflectiveOperationException{
+        UniformsMap uniformsMap = new UniformsMap(1);
+        Field field = UniformsMap.class.getDeclaredField("uniforms");
+        field.setAccessible(true);
+        uniforms = (Map<String, Integer>) field.get(uniformsMap);
+        locations = new int[UNIFORM_NAMES.length];
+        for (int i = 0; i < UNIFORM_NAMES.length; i++){
+            uniforms.put(UNIFORM_NAMES[i], i);
+            locations[i] = i;
+        }
+    }
+
+    // What UniformsMap.getUniformLocation does for every String setUniform call
+    @Benchmark
+    public int lookupByName(){
+        int sum = 0;
+        for (int i = 0; i < numDraws; i++){
+            Integer location = uniforms.get(UNIFORM_NAMES[i % UNIFORM_NAMES.length]);
+            if (location == null){
+                throw new RuntimeException("Could not find uniform [" + UNIFORM_NAMES[i % UNIFORM_NAMES.length] + "]");
+            }
+            sum += location.intValue();
+        }
+        return sum;
+    }
+
+    // Locations returned by createUniform and kept in fields, as SceneRender does
+    @Benchmark
+    public int cachedLocation(){
+        int sum = 0;
+        for (int i = 0; i < numDraws; i++){
+            sum += locations[i % locations.length];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,40 @@
+package bench.lwjglb.engine.scene;
+
+import main.lwjglb.engine.scene.Camera;
+import org.joml.Matrix4f;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+/**
+ * View matrix recalculation, alone and as triggered by a frame of typical input (move and rotate).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CameraBenchmark {
+    private Camera camera;
+
+    @Setup
+    public void setup(){
+        camera = new Camera();
+        camera.setPosition(0, 2, 10);
+        camera.setRotation(0.2f, 0.4f);
+    }
+
+    @Benchmark
+    public Matrix4f recalculate(){
+        camera.recalculate();
+        return camera.getViewMatrix();
+    }
+
+    @Benchmark
+    public Matrix4f moveAndRotate(){
+        camera.moveForward(0.05f);
+        camera.moveLeft(0.02f);
+        camera.addRotation(0.001f, -0.002f);
+        return camera.getViewMatrix();
+    }
+}
@@ -0,0 +1,100 @@
+package bench.lwjglb.engine.scene;
+
+import main.lwjglb.engine.scene.ModelCache;
+import main.lwjglb.engine.scene.ModelLoader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+/**
+ * CPU side of model loading, on the bundled cube and on a synthetic grid (written to a temp file at setup):
+ * Assimp import with vertex / index extraction, plus level of detail generation when generateLods is set, and the
+ * same model read back from the model cache. Needs the Assimp natives but no GL context.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModelLoaderBenchmark {
+    private static final String CUBE_PATH = "resources/models/cube/cube.obj";
+    private static final int GRID_SIZE = 64;
+    @Param({"false", "true"})
+    private boolean generateLods;
+    @Param({"cube", "grid"})
+    private String model;
+    private String modelPath;
+    private Path tmpDir;
+
+    @Setup
+    public void setup() throws IOException{
+        if (model.equals("cube")){
+            modelPath = CUBE_PATH;
+        }
+        else{
+            tmpDir = Files.createTempDirectory("jengine-bench");
+            modelPath = writeGrid(tmpDir.resolve("grid.obj"), GRID_SIZE).toString();
+        }
+        // Fills the model cache for loadCached
+        free(ModelLoader.loadModelData(modelPath, ModelLoader.DEFAULT_FLAGS, generateLods));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException{
+        if (tmpDir != null){
+            // The grid gets a new temp path every trial, so its cache file would never be used again
+            ModelCache.delete(modelPath);
+            Files.deleteIfExists(tmpDir.resolve("grid.obj"));
+            Files.deleteIfExists(tmpDir);
+        }
+    }
+
+    private static void free(ModelLoader.ModelData modelData){
+        for (ModelLoader.MeshData meshData : modelData.meshes()){
+            meshData.free();
+        }
+    }
+
+    @Benchmark
+    public int importModel(){
+        ModelLoader.ModelData modelData = ModelLoader.importModelData(modelPath, ModelLoader.DEFAULT_FLAGS, generateLods);
+        int numIndices = modelData.meshes().get(0).indices().remaining();
+        free(modelData);
+        return numIndices;
+    }
+
+    @Benchmark
+    public int loadCached(){
+        ModelLoader.ModelData modelData = ModelLoader.loadModelData(modelPath, ModelLoader.DEFAULT_FLAGS, generateLods);
+        int numIndices = modelData.meshes().get(0).indices().remaining();
+        free(modelData);
+        return numIndices;
+    }
+
+    // Wavy size x size quad grid with texture coordinates, as a Wavefront OBJ file
+    private static Path writeGrid(Path path, int size) throws IOException{
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(path))){
+            for (int z = 0; z <= size; z++){
+                for (int x = 0; x <= size; x++){
+                    float y = (float) (Math.sin(x * 0.3) * Math.cos(z * 0.3));
+                    writer.printf(Locale.ROOT, "v %f %f %f%n", (float) x / size, y * 0.1f, (float) z / size);
+                    writer.printf(Locale.ROOT, "vt %f %f%n", (float) x / size, (float) z / size);
+                }
+            }
+            for (int z = 0; z < size; z++){
+                for (int x = 0; x < size; x++){
+                    int a = z * (size + 1) + x + 1; // OBJ indices start at 1
+                    int b = a + 1;
+                    int c = a + size + 1;
+                    int d = c + 1;
+                    writer.printf("f %d/%d %d/%d %d/%d%n", a, a, c, c, b, b);
+                    writer.printf("f %d/%d %d/%d %d/%d%n", b, b, c, c, d, d);
+                }
+            }
+        }
+        return path;
+    }
+}
@@ -0,0 +1,92 @@
+package bench.lwjglb.engine.scene;
+
+import main.lwjglb.engine.scene.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+/**
+ * Model matrix updates over large entity counts: one entity at a time through Entity.updateModelMatrix, and the
+ * whole dirty set through TransformStore.updateDirty as the engine does every step, and moves of the roots of
+ * a hierarchy of the same size (trees of HIERARCHY_FANOUT children each with HIERARCHY_FANOUT children).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransformBenchmark {
+    private static final int HIERARCHY_FANOUT = 4;
+    @Param({"1000", "10000", "100000"})
+    private int numEntities;
+    private Entity[] entities;
+    private TransformStore hierarchyStore;
+    private int[] roots;
+    private TransformStore store;
+
+    @Setup
+    public void setup(){
+        store = new TransformStore();
+        entities = new Entity[numEntities];
+        Random random = new Random(42);
+        for (int i = 0; i < numEntities; i++){
+            Entity entity = new Entity("entity-" + i, "model", store);
+            entity.setPosition(random.nextFloat() * 100, random.nextFloat() * 100, random.nextFloat() * 100);
+            entity.setRotation(0, 1, 0, random.nextFloat() * 6.28f);
+            entity.setScale(0.5f + random.nextFloat());
+            entities[i] = entity;
+        }
+        store.updateDirty();
+        store.clearDirty();
+
+        hierarchyStore = new TransformStore();
+        int treeSize = 1 + HIERARCHY_FANOUT + HIERARCHY_FANOUT * HIERARCHY_FANOUT;
+        roots = new int[numEntities / treeSize];
+        for (int i = 0; i < roots.length; i++){
+            Entity root = new Entity("root-" + i, "model", hierarchyStore);
+            roots[i] = root.getHandle();
+            for (int j = 0; j < HIERARCHY_FANOUT; j++){
+                Entity child = new Entity("child-" + i + "-" + j, "model", hierarchyStore);
+                child.setParent(root);
+                child.setPosition(j, 0, 0);
+                for (int k = 0; k < HIERARCHY_FANOUT; k++){
+                    Entity grandChild = new Entity("grandchild-" + i + "-" + j + "-" + k, "model", hierarchyStore);
+                    grandChild.setParent(child);
+                    grandChild.setPosition(0, k, 0);
+                }
+            }
+        }
+        hierarchyStore.updateDirty();
+        hierarchyStore.clearDirty();
+    }
+
+    @Benchmark
+    public void updateModelMatrix(){
+        for (Entity entity : entities){
+            entity.updateModelMatrix();
+        }
+    }
+
+    // Moves every entity, then updates the dirty set (in parallel above TransformStore's threshold)
+    @Benchmark
+    public int updateDirty(){
+        for (int i = 0; i < entities.length; i++){
+            store.setPosition(entities[i].getHandle(), i, i * 0.5f, -i);
+        }
+        int updated = store.updateDirty();
+        store.clearDirty();
+        return updated;
+    }
+
+    // Moves every root, then updates the dirty set, which walks each root's subtree
+    @Benchmark
+    public int updateHierarchy(){
+        for (int i = 0; i < roots.length; i++){
+            hierarchyStore.setPosition(roots[i], i, i * 0.5f, -i);
+        }
+        int updated = hierarchyStore.updateDirty();
+        hierarchyStore.clearDirty();
+        return updated;
+    }
+}
@@ -1,7 +1,14 @@
 package main.lwjglb.engine;
 
 import main.lwjglb.engine.graph.Render;
+import main.lwjglb.engine.graph.RenderSnapshot;
+import main.lwjglb.engine.scene.AsyncModelLoader;
 import main.lwjglb.engine.scene.Scene;
+import org.tinylog.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Receives in the constructor: title of the window, window options, and a reference
@@ -9,12 +16,33 @@ import main.lwjglb.engine.scene.Scene;
  * Constructor creates an instance of Window(), Render(), and Scene().
  *
  * cleanup() invokes the other classes'
+ *
+ * Pipelined mode (WindowOptions.pipelined): the update steps, transform propagation and the capture of a
+ * RenderSnapshot run on a simulation thread, while the GL thread renders the snapshot captured in the previous
+ * iteration, so a frame costs about max(simulation, render) instead of their sum, at one frame of extra latency.
+ * The scene is only touched by the GL thread (input, finished asset loads) while the simulation thread is idle,
+ * between two iterations. IAppLogic.update must not make GL calls in this mode.
+ *
+ * Profiling (WindowOptions.profile): enables the Profiler, logs its summary every SUMMARY_INTERVAL_NANOS and
+ * writes the recorded events to TRACE_FILE on exit.
  */
 public class Engine {
     public static final int TARGET_UPS = 30;
+    private static final Profiler.Marker INPUT = Profiler.marker("input");
+    private static final int MAX_STEPS_PER_FRAME = 5;
+    private static final long NANOS_PER_MILLI = 1_000_000L;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final Profiler.Marker SIMULATION = Profiler.marker("simulation");
+    private static final long SPIN_NANOS = 500_000L;
+    private static final long SUMMARY_INTERVAL_NANOS = 5 * NANOS_PER_SECOND;
+    private static final Profiler.Marker SWAP = Profiler.marker("swap");
+    public static final String TRACE_FILE = "cache/profile.json";
+    private static final Profiler.Marker UPDATE = Profiler.marker("update");
     private final IAppLogic appLogic;
     private final Window window;
     private Render render;
+    private long nextSummaryTime;
+    private final boolean pipelined;
     private boolean running;
     private Scene scene;
     private int targetFps;
@@ -27,6 +55,8 @@ public class Engine {
         });
         targetFps = opts.fps;
         targetUps = opts.ups;
+        pipelined = opts.pipelined;
+        Profiler.setEnabled(opts.profile);
         this.appLogic = appLogic;
         render = new Render();
         scene = new Scene(window.getWidth(), window.getHeight());
@@ -35,6 +65,15 @@ public class Engine {
     }
 
     private void cleanup() {
+        if (Profiler.isEnabled()){
+            Logger.info(Profiler.getSummary());
+            try{
+                Profiler.writeChromeTrace(TRACE_FILE);
+            }
+            catch (IOException excp){
+                Logger.error(excp, "Error writing profiler trace [{}]", TRACE_FILE);
+            }
+        }
         appLogic.cleanup();
         render.cleanup();
         scene.cleanup();
@@ -46,44 +85,188 @@ public class Engine {
     }
 
     // Define gameloop
+    // Fixed timestep: updates run every 1 / targetUps seconds of accumulated time, catching up with several steps
+    // per frame when behind (at most MAX_STEPS_PER_FRAME, dropping the rest of the backlog). Rendering interpolates
+    // between the last two update states with the fraction of the step elapsed. With an fps target, the loop
+    // sleeps until the next frame is due instead of spinning
     private void run(){
-        long initialTime = System.currentTimeMillis();
-        float timeU = 1000.0f / targetUps; // Time between updates in ms
-        float timeR = targetFps > 0 ? 1000.0f / targetFps : 0; // Time between render calls in ms
-        float deltaUpdate = 0; 
-        float deltaFps = 0; // Rely on Vsync refresh rate & set FPS to 0
+        if (pipelined){
+            runPipelined();
+            return;
+        }
+        long stepNanos = NANOS_PER_SECOND / targetUps;
+        long frameNanos = targetFps > 0 ? NANOS_PER_SECOND / targetFps : 0;
+        long previousTime = System.nanoTime();
+        long nextFrameTime = previousTime;
+        long accumulator = 0;
 
-        long updateTime = initialTime;
         while (running && !window.windowShouldClose()){
-            window.pollEvents();
+            beginFrame();
+            long now = System.nanoTime();
+            long elapsed = now - previousTime;
+            previousTime = now;
+            accumulator += elapsed;
 
-            long now = System.currentTimeMillis();
-            deltaUpdate += (now - initialTime) / timeU;
-            deltaFps += (now - initialTime) / timeR;
+            INPUT.begin();
+            window.pollEvents();
+            window.getMouseInput().input();
+            appLogic.input(window, scene, elapsed / NANOS_PER_MILLI);
+            INPUT.end();
 
-            // If max elapsed time for render -> call appLogic.input
-            // If max elapsed time for render -> trigger render calls by calling render.render
-            // If max elapsed time for update -> call appLogic.update
-            if (targetFps <= 0 || deltaFps >= 1){
-                window.getMouseInput().input();
-                appLogic.input(window, scene, now - initialTime);
+            int steps = 0;
+            while (accumulator >= stepNanos && steps < MAX_STEPS_PER_FRAME){
+                UPDATE.begin();
+                scene.beginStep();
+                appLogic.update(window, scene, stepNanos / NANOS_PER_MILLI);
+                scene.updateTransforms(); // Propagate entity changes made by the step
+                UPDATE.end();
+                accumulator -= stepNanos;
+                steps++;
             }
-            if (deltaUpdate >= 1){
-                long diffTimeMillis = now - updateTime;
-                appLogic.update(window, scene, diffTimeMillis);
-                updateTime = now;
-                deltaUpdate--;
+            if (accumulator >= stepNanos){
+                // Too far behind (e.g. after a stall): let the simulation slow down instead of spiraling
+                accumulator %= stepNanos;
             }
-            if (targetFps <= 0 || deltaFps >= 1){
-                render.render(window, scene);
-                deltaFps--;
-                window.update();
+
+            // Finish pending asset loads within a small per frame budget
+            scene.getAsyncModelLoader().processUploads(AsyncModelLoader.DEFAULT_UPLOAD_BUDGET_NANOS);
+            scene.updateTransforms(); // Propagate entity changes made by input
+            render.render(window, scene, (float) accumulator / stepNanos);
+            SWAP.begin();
+            window.update();
+            SWAP.end();
+
+            if (frameNanos > 0){
+                nextFrameTime += frameNanos;
+                long time = System.nanoTime();
+                if (nextFrameTime < time){
+                    nextFrameTime = time; // Late: do not try to make up for missed frames
+                }
+                sleepUntil(nextFrameTime);
             }
-            initialTime = now;
         }
         cleanup(); // Free resources
     }
 
+    // Same loop and timing as run(), with the simulation of iteration N + 1 overlapping the render of iteration N.
+    // Two snapshots alternate: the simulation captures into one while the GL thread renders the other
+    private void runPipelined(){
+        long stepNanos = NANOS_PER_SECOND / targetUps;
+        long frameNanos = targetFps > 0 ? NANOS_PER_SECOND / targetFps : 0;
+        long previousTime = System.nanoTime();
+        long nextFrameTime = previousTime;
+        long accumulator = 0;
+        RenderSnapshot[] snapshots = {new RenderSnapshot(), new RenderSnapshot()};
+        int front = 0;
+        boolean hasFrame = false;
+        CompletableFuture<Void> simulation = CompletableFuture.completedFuture(null);
+        ExecutorService simulationThread = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "simulation");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try{
+            while (running && !window.windowShouldClose()){
+                beginFrame();
+                // Wait for the previous simulation and publish its snapshot. The scene is ours until the next starts
+                simulation.join();
+                if (hasFrame){
+                    front ^= 1;
+                }
+                INPUT.begin();
+                // Only now: callbacks such as the resize one (Scene.resize) change the scene
+                window.pollEvents();
+
+                long now = System.nanoTime();
+                long elapsed = now - previousTime;
+                previousTime = now;
+                accumulator += elapsed;
+
+                window.getMouseInput().input();
+                appLogic.input(window, scene, elapsed / NANOS_PER_MILLI);
+                INPUT.end();
+                // Finish pending asset loads within a small per frame budget
+                scene.getAsyncModelLoader().processUploads(AsyncModelLoader.DEFAULT_UPLOAD_BUDGET_NANOS);
+
+                int steps = 0;
+                while (accumulator >= stepNanos && steps < MAX_STEPS_PER_FRAME){
+                    accumulator -= stepNanos;
+                    steps++;
+                }
+                if (accumulator >= stepNanos){
+                    accumulator %= stepNanos;
+                }
+                int numSteps = steps;
+                float alpha = (float) accumulator / stepNanos;
+                RenderSnapshot back = snapshots[front ^ 1];
+                simulation = CompletableFuture.runAsync(() -> {
+                    SIMULATION.begin();
+                    for (int i = 0; i < numSteps; i++){
+                        UPDATE.begin();
+                        scene.beginStep();
+                        appLogic.update(window, scene, stepNanos / NANOS_PER_MILLI);
+                        scene.updateTransforms();
+                        UPDATE.end();
+                    }
+                    scene.updateTransforms(); // Propagate entity changes made by input
+                    back.capture(scene, alpha);
+                    SIMULATION.end();
+                }, simulationThread);
+
+                if (hasFrame){
+                    render.render(window, scene, snapshots[front]);
+                    SWAP.begin();
+                    window.update();
+                    SWAP.end();
+                }
+                hasFrame = true;
+
+                if (frameNanos > 0){
+                    nextFrameTime += frameNanos;
+                    long time = System.nanoTime();
+                    if (nextFrameTime < time){
+                        nextFrameTime = time;
+                    }
+                    sleepUntil(nextFrameTime);
+                }
+            }
+            simulation.join();
+        }
+        finally{
+            simulationThread.shutdownNow();
+        }
+        cleanup(); // Free resources
+    }
+
+    // Closes the profiler's frame, logging its summary every SUMMARY_INTERVAL_NANOS
+    private void beginFrame(){
+        if (!Profiler.isEnabled()){
+            return;
+        }
+        Profiler.beginFrame();
+        long now = System.nanoTime();
+        if (nextSummaryTime == 0){
+            nextSummaryTime = now + SUMMARY_INTERVAL_NANOS;
+        }
+        else if (now >= nextSummaryTime){
+            Logger.info(Profiler.getSummary());
+            nextSummaryTime = now + SUMMARY_INTERVAL_NANOS;
+        }
+    }
+
+    // Parks the thread until close to deadline, then spins the last stretch, as park wake ups are only accurate
+    // to the OS timer slack
+    private static void sleepUntil(long deadline){
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > SPIN_NANOS){
+            LockSupport.parkNanos(remaining - SPIN_NANOS);
+        }
+        while (deadline - System.nanoTime() > 0){
+            Thread.onSpinWait();
+        }
+    }
+
     // GLFW and polling events required to be initialized from the main thread.
     // Execute everything from the main thread to avoid creating a new thread in start()
     public void start(){
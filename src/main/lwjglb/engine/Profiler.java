@@ -0,0 +1,355 @@
+package main.lwjglb.engine;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+/**
+ * Frame profiler: CPU scopes, GPU timings (see graph.GpuTimerPool) and per frame counters.
+ * Scopes are Markers created once (usually in static fields) and timed with begin() / end(), or with
+ * try (Profiler.Marker m = MARKER.scope()) {...}. Both are allocation free and can be used from any thread;
+ * scopes nest per thread. Every finished scope is written to a ring buffer of the last EVENT_CAPACITY events,
+ * which writeChromeTrace() exports for chrome://tracing or Perfetto, and added to its marker's total for the
+ * frame. The last HISTORY_FRAMES frames of totals and counters are kept for getSummary().
+ * Disabled by default: begin() then returns right away and nothing is recorded. Counters are only meant to be
+ * incremented from the GL thread.
+ */
+public class Profiler {
+    public static final int EVENT_CAPACITY = 1 << 16;
+    public static final int HISTORY_FRAMES = 240;
+    private static final int GPU_THREAD_ID = 0;
+    private static final int MAX_DEPTH = 32;
+    private static final int MAX_MARKERS = 64;
+    private static final long START_NANOS = System.nanoTime();
+
+    // Per frame counters, incremented with count()
+    public enum Counter {
+        DRAW_CALLS("draw calls"),
+        STATE_CHANGES("state changes"),
+        TEXTURE_BINDS("texture binds"),
+        TRIANGLES("triangles"),
+        UNIFORM_UPLOADS("uniform uploads"),
+        UPLOAD_BYTES("upload bytes");
+
+        private final String label;
+
+        Counter(String label){
+            this.label = label;
+        }
+
+        public String getLabel(){
+            return label;
+        }
+    }
+
+    private static final int NUM_COUNTERS = Counter.values().length;
+
+    private static volatile boolean enabled;
+    private static final int[] counters = new int[NUM_COUNTERS];
+    private static final AtomicLongArray cpuTotals = new AtomicLongArray(MAX_MARKERS);
+    private static final int[] eventFrames = new int[EVENT_CAPACITY];
+    private static final long[] eventDurations = new long[EVENT_CAPACITY];
+    private static final int[] eventMarkers = new int[EVENT_CAPACITY];
+    private static final long[] eventStarts = new long[EVENT_CAPACITY];
+    private static final int[] eventThreads = new int[EVENT_CAPACITY];
+    private static final AtomicLong eventCount = new AtomicLong();
+    private static volatile int frame;
+    private static long frameStart = System.nanoTime();
+    private static final int[] historyCounters = new int[HISTORY_FRAMES * NUM_COUNTERS];
+    private static final long[] historyCpu = new long[HISTORY_FRAMES * MAX_MARKERS];
+    private static final long[] historyDurations = new long[HISTORY_FRAMES];
+    private static final long[] historyGpu = new long[HISTORY_FRAMES * MAX_MARKERS];
+    private static final long[] historyStarts = new long[HISTORY_FRAMES];
+    private static final Marker[] markers = new Marker[MAX_MARKERS];
+    private static int numMarkers;
+    private static final AtomicInteger nextThreadId = new AtomicInteger(GPU_THREAD_ID + 1);
+    private static final List<String> threadNames = new ArrayList<>(List.of("GPU"));
+    private static final ThreadLocal<ThreadState> threadState = ThreadLocal.withInitial(ThreadState::new);
+
+    private Profiler(){
+        // util class
+    }
+
+    // Closes the current frame: its totals and counters go to the history and are reset. Called by the engine at
+    // the start of every loop iteration, on the GL thread
+    public static void beginFrame(){
+        long now = System.nanoTime();
+        int slot = frame % HISTORY_FRAMES;
+        historyStarts[slot] = frameStart;
+        historyDurations[slot] = now - frameStart;
+        for (int i = 0; i < MAX_MARKERS; i++){
+            historyCpu[slot * MAX_MARKERS + i] = cpuTotals.getAndSet(i, 0);
+        }
+        System.arraycopy(counters, 0, historyCounters, slot * NUM_COUNTERS, NUM_COUNTERS);
+        Arrays.fill(counters, 0);
+
+        // GPU times of the new frame arrive a few frames later, in recordGpu
+        int next = (frame + 1) % HISTORY_FRAMES;
+        Arrays.fill(historyGpu, next * MAX_MARKERS, (next + 1) * MAX_MARKERS, 0);
+        frameStart = now;
+        frame++;
+    }
+
+    public static void count(Counter counter, int amount){
+        counters[counter.ordinal()] += amount;
+    }
+
+    public static int getCount(Counter counter){
+        return counters[counter.ordinal()];
+    }
+
+    // Frames closed by beginFrame so far
+    public static int getFrame(){
+        return frame;
+    }
+
+    // Average and maximum of the frame time, every marker's CPU and GPU time and the counters over the last
+    // HISTORY_FRAMES frames (fewer right after start up)
+    public static String getSummary(){
+        int numFrames = Math.min(frame, HISTORY_FRAMES);
+        if (numFrames == 0){
+            return "No frames profiled";
+        }
+        StringBuilder sb = new StringBuilder();
+        long frameSum = 0;
+        long frameMax = 0;
+        for (int i = 0; i < numFrames; i++){
+            frameSum += historyDurations[i];
+            frameMax = Math.max(frameMax, historyDurations[i]);
+        }
+        sb.append(String.format(Locale.ROOT, "Frame %.2f ms avg, %.2f ms max over %d frames", millis(frameSum) / numFrames,
+                millis(frameMax), numFrames));
+
+        int registered = getNumMarkers();
+        for (int m = 0; m < registered; m++){
+            long cpuSum = 0;
+            long cpuMax = 0;
+            long gpuSum = 0;
+            long gpuMax = 0;
+            int gpuFrames = 0; // GPU times of the last few frames are not read back yet
+            for (int i = 0; i < numFrames; i++){
+                long cpu = historyCpu[i * MAX_MARKERS + m];
+                long gpu = historyGpu[i * MAX_MARKERS + m];
+                cpuSum += cpu;
+                cpuMax = Math.max(cpuMax, cpu);
+                gpuSum += gpu;
+                gpuMax = Math.max(gpuMax, gpu);
+                if (gpu > 0){
+                    gpuFrames++;
+                }
+            }
+            if (cpuSum == 0 && gpuSum == 0){
+                continue;
+            }
+            sb.append(String.format(Locale.ROOT, "%n  %-20s cpu %7.3f ms avg %7.3f ms max", markers[m].getName(),
+                    millis(cpuSum) / numFrames, millis(cpuMax)));
+            if (gpuSum > 0){
+                sb.append(String.format(Locale.ROOT, "   gpu %7.3f ms avg %7.3f ms max", millis(gpuSum) / gpuFrames,
+                        millis(gpuMax)));
+            }
+        }
+
+        sb.append(String.format("%n  per frame:"));
+        for (Counter counter : Counter.values()){
+            long sum = 0;
+            for (int i = 0; i < numFrames; i++){
+                sum += historyCounters[i * NUM_COUNTERS + counter.ordinal()];
+            }
+            sb.append(String.format(Locale.ROOT, " %s %.1f", counter.getLabel(), (double) sum / numFrames));
+        }
+        return sb.toString();
+    }
+
+    public static boolean isEnabled(){
+        return enabled;
+    }
+
+    // Returns the marker with the given name, creating it the first time
+    public static synchronized Marker marker(String name){
+        for (int i = 0; i < numMarkers; i++){
+            if (markers[i].getName().equals(name)){
+                return markers[i];
+            }
+        }
+        if (numMarkers == MAX_MARKERS){
+            throw new RuntimeException("Too many profiler markers [" + name + "]");
+        }
+        Marker marker = new Marker(numMarkers, name);
+        markers[numMarkers++] = marker;
+        return marker;
+    }
+
+    private static double millis(long nanos){
+        return nanos / 1_000_000.0;
+    }
+
+    private static synchronized int getNumMarkers(){
+        return numMarkers;
+    }
+
+    private static void record(int markerId, int threadId, long start, long duration, int eventFrame){
+        int slot = (int) (eventCount.getAndIncrement() & (EVENT_CAPACITY - 1));
+        eventMarkers[slot] = markerId;
+        eventThreads[slot] = threadId;
+        eventStarts[slot] = start;
+        eventDurations[slot] = duration;
+        eventFrames[slot] = eventFrame;
+    }
+
+    // GPU time of a marker's scope, measured by GL queries and read back a few frames after eventFrame.
+    // cpuStart is when the scope was submitted, which places the event on the trace timeline
+    public static void recordGpu(Marker marker, long cpuStart, long duration, int eventFrame){
+        record(marker.getId(), GPU_THREAD_ID, cpuStart, duration, eventFrame);
+        if (eventFrame > frame - HISTORY_FRAMES){
+            historyGpu[(eventFrame % HISTORY_FRAMES) * MAX_MARKERS + marker.getId()] += duration;
+        }
+    }
+
+    public static void setEnabled(boolean enabled){
+        Profiler.enabled = enabled;
+    }
+
+    // Writes the events in the ring buffer, and the counters of the frames in the history, in the Chrome trace
+    // event format. Meant to be called from the GL thread; events being recorded by other threads meanwhile may
+    // be exported half written
+    public static void writeChromeTrace(String path) throws IOException{
+        long count = eventCount.get();
+        long first = Math.max(0, count - EVENT_CAPACITY);
+        List<String> names;
+        synchronized (Profiler.class){
+            names = new ArrayList<>(threadNames);
+        }
+
+        Path target = Paths.get(path).toAbsolutePath();
+        if (target.getParent() != null){
+            Files.createDirectories(target.getParent());
+        }
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(target),
+                StandardCharsets.UTF_8))){
+            writer.write("{\"traceEvents\":[\n");
+            boolean separator = false;
+            for (int i = 0; i < names.size(); i++){
+                separator = writeSeparator(writer, separator);
+                writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + i + ",\"args\":{\"name\":\"" +
+                        escape(names.get(i)) + "\"}}");
+            }
+            for (long e = first; e < count; e++){
+                int slot = (int) (e & (EVENT_CAPACITY - 1));
+                separator = writeSeparator(writer, separator);
+                writer.write(String.format(Locale.ROOT,
+                        "{\"name\":\"%s\",\"cat\":\"%s\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%.3f,\"dur\":%.3f," +
+                                "\"args\":{\"frame\":%d}}",
+                        escape(markers[eventMarkers[slot]].getName()), eventThreads[slot] == GPU_THREAD_ID ? "gpu" : "cpu",
+                        eventThreads[slot], (eventStarts[slot] - START_NANOS) / 1000.0, eventDurations[slot] / 1000.0,
+                        eventFrames[slot]));
+            }
+            int numFrames = Math.min(frame, HISTORY_FRAMES);
+            for (int f = frame - numFrames; f < frame; f++){
+                int slot = f % HISTORY_FRAMES;
+                StringBuilder args = new StringBuilder();
+                for (Counter counter : Counter.values()){
+                    if (args.length() > 0){
+                        args.append(',');
+                    }
+                    args.append('"').append(counter.getLabel()).append("\":")
+                            .append(historyCounters[slot * NUM_COUNTERS + counter.ordinal()]);
+                }
+                separator = writeSeparator(writer, separator);
+                writer.write(String.format(Locale.ROOT, "{\"name\":\"counters\",\"ph\":\"C\",\"pid\":1,\"ts\":%.3f,\"args\":{%s}}",
+                        (historyStarts[slot] - START_NANOS) / 1000.0, args));
+            }
+            writer.write("\n]}\n");
+        }
+    }
+
+    private static boolean writeSeparator(Writer writer, boolean separator) throws IOException{
+        if (separator){
+            writer.write(",\n");
+        }
+        return true;
+    }
+
+    private static String escape(String value){
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    // A named scope. Create with Profiler.marker(), once, and time with begin() / end() or scope()
+    public static final class Marker implements AutoCloseable {
+        private final int id;
+        private final String name;
+
+        private Marker(int id, String name){
+            this.id = id;
+            this.name = name;
+        }
+
+        public void begin(){
+            if (!enabled){
+                return;
+            }
+            ThreadState state = threadState.get();
+            if (state.depth == MAX_DEPTH){
+                throw new RuntimeException("Profiler scopes nested too deep [" + name + "]");
+            }
+            state.markerIds[state.depth] = id;
+            state.starts[state.depth] = System.nanoTime();
+            state.depth++;
+        }
+
+        // Same as end(), for try with resources
+        @Override
+        public void close(){
+            end();
+        }
+
+        // Ends the scope started by the last begin() of this thread, which must be this marker's. A scope begun
+        // while the profiler was disabled is not recorded
+        public void end(){
+            ThreadState state = threadState.get();
+            if (state.depth == 0){
+                return;
+            }
+            if (state.markerIds[state.depth - 1] != id){
+                throw new RuntimeException("Profiler scope [" + name + "] ended inside [" +
+                        markers[state.markerIds[state.depth - 1]].getName() + "]");
+            }
+            state.depth--;
+            long start = state.starts[state.depth];
+            long duration = System.nanoTime() - start;
+            record(id, state.threadId, start, duration, frame);
+            cpuTotals.addAndGet(id, duration);
+        }
+
+        public int getId(){
+            return id;
+        }
+
+        public String getName(){
+            return name;
+        }
+
+        // Begins the scope and returns this marker, which ends it when closed
+        public Marker scope(){
+            begin();
+            return this;
+        }
+    }
+
+    private static final class ThreadState {
+        private int depth;
+        private final int[] markerIds = new int[MAX_DEPTH];
+        private final long[] starts = new long[MAX_DEPTH];
+        private final int threadId;
+
+        private ThreadState(){
+            threadId = nextThreadId.getAndIncrement();
+            synchronized (Profiler.class){
+                while (threadNames.size() <= threadId){
+                    threadNames.add("");
+                }
+                threadNames.set(threadId, Thread.currentThread().getName() + " #" + threadId);
+            }
+        }
+    }
+}
@@ -16,8 +16,15 @@ import static org.lwjgl.system.MemoryUtil.NULL;
  * its characteristics (title and size).
  * Needs to be aware of resizing -> setup callback that will be invoked everytime the window
  * is resized. Callback receives width & height in px of the framebuffer
+ *
+ * Headless mode (WindowOptions.headless): the window is never shown and there is no vsync. Render draws into an
+ * offscreen framebuffer and update() waits for the GPU to finish the frame instead of swapping. Without a display
+ * on Linux, GLFW's null platform is used with an OSMesa context, so Mesa's software rasterizer works as well.
  */
 public class Window {
+    public static final int HEADLESS_HEIGHT = 720;
+    public static final int HEADLESS_WIDTH = 1280;
+    private final boolean headless;
     private final long windowHandle;
     private int height;
     private MouseInput mouseInput;
@@ -26,6 +33,11 @@ public class Window {
 
     public Window(String title, WindowOptions opts, Callable<Void> resizeFunc){
         this.resizeFunc = resizeFunc;
+        headless = opts.headless;
+        boolean offscreenContext = headless && !hasDisplay();
+        if (offscreenContext){
+            glfwInitHint(GLFW_PLATFORM, GLFW_PLATFORM_NULL);
+        }
 
         // Initialize GLFW
         if(!glfwInit()){
@@ -45,10 +57,18 @@ public class Window {
             glfwWindowHint(GLFW_OPENGL_PROFILE, GLFW_OPENGL_CORE_PROFILE);
             glfwWindowHint(GLFW_OPENGL_FORWARD_COMPAT, GL_TRUE);
         }
+        if (offscreenContext){
+            glfwWindowHint(GLFW_CONTEXT_CREATION_API, GLFW_OSMESA_CONTEXT_API);
+        }
         if (opts.width > 0 && opts.height > 0){
             this.width = opts.width;
             this.height = opts.height;
         }
+        // No monitor to size a headless window after
+        else if (headless){
+            width = HEADLESS_WIDTH;
+            height = HEADLESS_HEIGHT;
+        }
 
         // Get resolution of primary monitor
         else{
@@ -80,13 +100,15 @@ public class Window {
         // before drawing to the screen.
         // Refresh rate matches FPS (60hz == 60FPS)
         glfwMakeContextCurrent(windowHandle);
-        if (opts.fps > 0){
+        if (opts.fps > 0 || headless){
             glfwSwapInterval(0);
         }
         else{
             glfwSwapInterval(1);
         }
-        glfwShowWindow(windowHandle); // Make window visible
+        if (!headless){
+            glfwShowWindow(windowHandle); // Make window visible
+        }
 
         int[] arrWidth = new int[1];
         int[] arrHeight = new int[1];
@@ -109,6 +131,14 @@ public class Window {
         }
     }
 
+    // Whether a display server is available to GLFW (always on Windows and macOS)
+    private static boolean hasDisplay(){
+        if (!System.getProperty("os.name").toLowerCase().contains("linux")){
+            return true;
+        }
+        return System.getenv("DISPLAY") != null || System.getenv("WAYLAND_DISPLAY") != null;
+    }
+
     public int getHeight(){
         return height;
     }
@@ -125,6 +155,10 @@ public class Window {
         return windowHandle;
     }
 
+    public boolean isHeadless(){
+        return headless;
+    }
+
     // Used in game loop
     public boolean isKeyPressed(int keyCode){
         return glfwGetKey(windowHandle, keyCode) == GLFW_PRESS;
@@ -153,8 +187,15 @@ public class Window {
         }
     }
     
+    // Presents the frame. Headless, nothing is presented: waiting for the GPU keeps frames from queueing up,
+    // so frame times include the GPU work
     public void update(){
-        glfwSwapBuffers(windowHandle);
+        if (headless){
+            glFinish();
+        }
+        else{
+            glfwSwapBuffers(windowHandle);
+        }
     }
 
     public boolean windowShouldClose(){
@@ -164,7 +205,13 @@ public class Window {
     public static class WindowOptions{
         public boolean compatibleProfile;
         public int fps;
+        // Never show the window, render offscreen, no vsync (see Window)
+        public boolean headless;
         public int height;
+        // Time frame stages and log a summary every few seconds; a Chrome trace is written on exit (see Engine)
+        public boolean profile;
+        // Run the simulation on its own thread, one frame ahead of rendering (see Engine)
+        public boolean pipelined;
         public int ups = Engine.TARGET_UPS;
         public int width;
     }
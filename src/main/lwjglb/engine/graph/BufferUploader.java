@@ -0,0 +1,112 @@
+package main.lwjglb.engine.graph;
+
+import main.lwjglb.engine.Profiler;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.*;
+
+import static org.lwjgl.opengl.GL15.*;
+/**
+ * Streams vertex and index data into GL buffers in chunks of at most CHUNK_SIZE bytes.
+ * Heap data (e.g. float[] wrapped in a buffer) is copied chunk by chunk into an off heap staging buffer that is
+ * allocated once and reused; direct data is passed to GL a chunk at a time, without copying. Either way no upload
+ * needs temporary memory proportional to the mesh, so multi million vertex meshes load without spiking memory or
+ * overflowing the thread's MemoryStack. glBufferSubData copies the data before returning, so a single staging
+ * chunk can be refilled right away.
+ * Bytes uploaded are added to the profiler's UPLOAD_BYTES counter (per frame) and to getUploadedBytes (total).
+ * All methods must be called from the thread owning the GL context, with the destination buffer bound to target.
+ */
+public class BufferUploader {
+    public static final int CHUNK_SIZE = 1 << 20;
+    private static ByteBuffer staging;
+    private static long uploadedBytes;
+
+    private BufferUploader(){
+        // util class
+    }
+
+    // Frees the staging buffer; it is allocated again if needed
+    public static void cleanup(){
+        MemoryUtil.memFree(staging);
+        staging = null;
+    }
+
+    // Returns the staging buffer, cleared, for callers that build the data to upload (e.g. interleaved vertices)
+    // a chunk at a time. Fill it, flip it and pass it to upload before asking for it again
+    public static ByteBuffer getChunk(){
+        if (staging == null){
+            staging = MemoryUtil.memAlloc(CHUNK_SIZE);
+        }
+        return staging.clear();
+    }
+
+    // Bytes uploaded since start up
+    public static long getUploadedBytes(){
+        return uploadedBytes;
+    }
+
+    private static void subData(int target, long offset, ByteBuffer data){
+        glBufferSubData(target, offset, data);
+        count(data.remaining());
+    }
+
+    private static void count(int bytes){
+        uploadedBytes += bytes;
+        Profiler.count(Profiler.Counter.UPLOAD_BYTES, bytes);
+    }
+
+    // Uploads data from position to limit at offset bytes into the buffer bound to target. data is left unchanged
+    public static void upload(int target, long offset, ByteBuffer data){
+        ByteBuffer src = data.duplicate();
+        while (src.hasRemaining()){
+            int count = Math.min(src.remaining(), CHUNK_SIZE);
+            ByteBuffer piece = src.slice(src.position(), count);
+            if (!piece.isDirect()){
+                piece = getChunk().put(piece).flip();
+            }
+            subData(target, offset, piece);
+            offset += count;
+            src.position(src.position() + count);
+        }
+    }
+
+    // Same as above for floats
+    public static void upload(int target, long offset, FloatBuffer data){
+        FloatBuffer src = data.duplicate();
+        while (src.hasRemaining()){
+            int count = Math.min(src.remaining(), CHUNK_SIZE / Float.BYTES);
+            FloatBuffer piece = src.slice(src.position(), count);
+            if (piece.isDirect()){
+                glBufferSubData(target, offset, piece);
+                count(count * Float.BYTES);
+            }
+            else{
+                ByteBuffer chunk = getChunk();
+                chunk.asFloatBuffer().put(piece);
+                subData(target, offset, chunk.limit(count * Float.BYTES));
+            }
+            offset += (long) count * Float.BYTES;
+            src.position(src.position() + count);
+        }
+    }
+
+    // Same as above for ints
+    public static void upload(int target, long offset, IntBuffer data){
+        IntBuffer src = data.duplicate();
+        while (src.hasRemaining()){
+            int count = Math.min(src.remaining(), CHUNK_SIZE / Integer.BYTES);
+            IntBuffer piece = src.slice(src.position(), count);
+            if (piece.isDirect()){
+                glBufferSubData(target, offset, piece);
+                count(count * Integer.BYTES);
+            }
+            else{
+                ByteBuffer chunk = getChunk();
+                chunk.asIntBuffer().put(piece);
+                subData(target, offset, chunk.limit(count * Integer.BYTES));
+            }
+            offset += (long) count * Integer.BYTES;
+            src.position(src.position() + count);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package main.lwjglb.engine.graph;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.*;
+import static org.lwjgl.opengl.GL42.GL_COMPRESSED_RGBA_BPTC_UNORM;
+/**
+ * Reads and writes block compressed 2D textures in the DDS container: BC1 (DXT1), BC3 (DXT5) and, through the
+ * DX10 extended header, BC7. Images hold all their mip levels back to back, largest first, as
+ * glCompressedTexSubImage expects them. Does not touch GL, so it can run on any thread.
+ */
+public class DdsFile {
+    private static final int DDPF_FOURCC = 0x4;
+    private static final int DDSCAPS_COMPLEX = 0x8;
+    private static final int DDSCAPS_MIPMAP = 0x400000;
+    private static final int DDSCAPS_TEXTURE = 0x1000;
+    private static final int DDSD_CAPS = 0x1;
+    private static final int DDSD_HEIGHT = 0x2;
+    private static final int DDSD_LINEARSIZE = 0x80000;
+    private static final int DDSD_MIPMAPCOUNT = 0x20000;
+    private static final int DDSD_PIXELFORMAT = 0x1000;
+    private static final int DDSD_WIDTH = 0x4;
+    private static final int DXGI_FORMAT_BC1_UNORM = 71;
+    private static final int DXGI_FORMAT_BC3_UNORM = 77;
+    private static final int DXGI_FORMAT_BC7_UNORM = 98;
+    private static final int DX10_HEADER_SIZE = 20;
+    private static final int FOURCC_DX10 = fourCC("DX10");
+    private static final int FOURCC_DXT1 = fourCC("DXT1");
+    private static final int FOURCC_DXT5 = fourCC("DXT5");
+    public static final String EXTENSION = ".dds";
+    private static final int HEADER_SIZE = 128; // Magic and DDS_HEADER
+    private static final int MAGIC = fourCC("DDS ");
+
+    private DdsFile(){
+        // util class
+    }
+
+    // Bytes per 4x4 block of a compressed format
+    public static int blockSize(int format){
+        return format == GL_COMPRESSED_RGBA_S3TC_DXT1_EXT ? 8 : 16;
+    }
+
+    private static int fourCC(String code){
+        return code.charAt(0) | code.charAt(1) << 8 | code.charAt(2) << 16 | code.charAt(3) << 24;
+    }
+
+    public static boolean isDds(String path){
+        return path.toLowerCase().endsWith(EXTENSION);
+    }
+
+    // Bytes of mip level 0 of a compressed image; each further level is computed the same way on the halved size
+    public static int levelSize(int format, int width, int height){
+        return Math.max(1, (width + 3) / 4) * Math.max(1, (height + 3) / 4) * blockSize(format);
+    }
+
+    // Reads a DDS file into an off heap buffer, freed with ImageData.free()
+    public static TextureCache.ImageData read(String path){
+        ByteBuffer buf = null;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)){
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + DX10_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != 124){
+                throw new RuntimeException("Not a DDS file [" + path + "]");
+            }
+            int height = header.getInt(12);
+            int width = header.getInt(16);
+            int levels = Math.max(1, header.getInt(28));
+            if ((header.getInt(80) & DDPF_FOURCC) == 0){
+                throw new RuntimeException("Uncompressed DDS files are not supported [" + path + "]");
+            }
+            int fourCC = header.getInt(84);
+            int dataOffset = HEADER_SIZE;
+            int format;
+            if (fourCC == FOURCC_DXT1){
+                format = GL_COMPRESSED_RGBA_S3TC_DXT1_EXT;
+            }
+            else if (fourCC == FOURCC_DXT5){
+                format = GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+            }
+            else if (fourCC == FOURCC_DX10){
+                format = switch (header.getInt(HEADER_SIZE)){
+                    case DXGI_FORMAT_BC1_UNORM -> GL_COMPRESSED_RGBA_S3TC_DXT1_EXT;
+                    case DXGI_FORMAT_BC3_UNORM -> GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+                    case DXGI_FORMAT_BC7_UNORM -> GL_COMPRESSED_RGBA_BPTC_UNORM;
+                    default -> throw new RuntimeException("Unsupported DXGI format [" + header.getInt(HEADER_SIZE) +
+                            "] in [" + path + "]");
+                };
+                dataOffset += DX10_HEADER_SIZE;
+            }
+            else{
+                throw new RuntimeException("Unsupported DDS format [" + Integer.toHexString(fourCC) + "] in [" +
+                        path + "]");
+            }
+
+            int size = size(format, width, height, levels);
+            if (channel.size() < dataOffset + (long) size){
+                throw new RuntimeException("Truncated DDS file [" + path + "]");
+            }
+            buf = MemoryUtil.memAlloc(size);
+            while (buf.hasRemaining()){
+                channel.read(buf, dataOffset + buf.position());
+            }
+            buf.flip();
+            return new TextureCache.ImageData(width, height, format, levels, buf);
+        }
+        catch (IOException | RuntimeException excp){
+            MemoryUtil.memFree(buf);
+            if (excp instanceof RuntimeException runtimeExcp){
+                throw runtimeExcp;
+            }
+            throw new RuntimeException("Error reading DDS file [" + path + "]", excp);
+        }
+    }
+
+    // Total bytes of all the mip levels of a compressed image
+    public static int size(int format, int width, int height, int levels){
+        int size = 0;
+        for (int level = 0; level < levels; level++){
+            size += levelSize(format, Math.max(1, width >> level), Math.max(1, height >> level));
+        }
+        return size;
+    }
+
+    // Writes a BC1 or BC3 image with the legacy header, readable by any DDS tool, creating missing directories.
+    // Goes through a temp file and a move, so a concurrent reader never sees a partial file
+    public static void write(String path, TextureCache.ImageData imageData) throws IOException{
+        int format = imageData.format();
+        if (format != GL_COMPRESSED_RGBA_S3TC_DXT1_EXT && format != GL_COMPRESSED_RGBA_S3TC_DXT5_EXT){
+            throw new RuntimeException("Unsupported format for writing [" + format + "]");
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, MAGIC);
+        header.putInt(4, 124);
+        header.putInt(8, DDSD_CAPS | DDSD_HEIGHT | DDSD_WIDTH | DDSD_PIXELFORMAT | DDSD_MIPMAPCOUNT | DDSD_LINEARSIZE);
+        header.putInt(12, imageData.height());
+        header.putInt(16, imageData.width());
+        header.putInt(20, levelSize(format, imageData.width(), imageData.height()));
+        header.putInt(28, imageData.levels());
+        header.putInt(76, 32);
+        header.putInt(80, DDPF_FOURCC);
+        header.putInt(84, format == GL_COMPRESSED_RGBA_S3TC_DXT1_EXT ? FOURCC_DXT1 : FOURCC_DXT5);
+        header.putInt(108, DDSCAPS_TEXTURE | (imageData.levels() > 1 ? DDSCAPS_MIPMAP | DDSCAPS_COMPLEX : 0));
+
+        Path target = Paths.get(path).toAbsolutePath();
+        Files.createDirectories(target.getParent());
+        Path tmpPath = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.WRITE)){
+            ByteBuffer data = imageData.buf().duplicate();
+            while (header.hasRemaining() || data.hasRemaining()){
+                channel.write(new ByteBuffer[]{header, data});
+            }
+        }
+        catch (IOException excp){
+            Files.deleteIfExists(tmpPath);
+            throw excp;
+        }
+        Files.move(tmpPath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,101 @@
+package main.lwjglb.engine.graph;
+
+import main.lwjglb.engine.Profiler;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GLCapabilities;
+
+import static org.lwjgl.opengl.GL33.*;
+/**
+ * Measures the GPU time of profiler markers with GL_TIME_ELAPSED queries.
+ * Queries are pooled per frame, FRAMES_IN_FLIGHT frames deep: the results of a frame are read back when its
+ * queries come up for reuse, by which time the GPU has normally finished it, so reading never stalls the
+ * pipeline. A result still not available then is dropped rather than waited for.
+ * GL_TIME_ELAPSED queries cannot be active at the same time, so GPU scopes cannot nest. Does nothing while the
+ * profiler is disabled or without GL 3.3 / ARB_timer_query.
+ */
+public class GpuTimerPool {
+    private static final int FRAMES_IN_FLIGHT = 4;
+    private static final int MAX_SCOPES_PER_FRAME = 16;
+    private Profiler.Marker activeMarker;
+    private final long[] cpuStarts;
+    private int currentFrame;
+    private int dropped;
+    private final int[] frames;
+    private final Profiler.Marker[] markers;
+    private final int[] numScopes;
+    private final int[] queryIds;
+    private final boolean supported;
+
+    public GpuTimerPool(){
+        GLCapabilities caps = GL.getCapabilities();
+        supported = caps.OpenGL33 || caps.GL_ARB_timer_query;
+        cpuStarts = new long[FRAMES_IN_FLIGHT * MAX_SCOPES_PER_FRAME];
+        frames = new int[FRAMES_IN_FLIGHT];
+        markers = new Profiler.Marker[FRAMES_IN_FLIGHT * MAX_SCOPES_PER_FRAME];
+        numScopes = new int[FRAMES_IN_FLIGHT];
+        queryIds = new int[FRAMES_IN_FLIGHT * MAX_SCOPES_PER_FRAME];
+        if (supported){
+            glGenQueries(queryIds);
+        }
+    }
+
+    // Starts timing marker on the GPU, until end()
+    public void begin(Profiler.Marker marker){
+        if (!supported || !Profiler.isEnabled()){
+            return;
+        }
+        if (activeMarker != null){
+            throw new RuntimeException("GPU timer scope [" + marker.getName() + "] started inside [" +
+                    activeMarker.getName() + "]");
+        }
+        int slot = currentFrame % FRAMES_IN_FLIGHT;
+        if (numScopes[slot] == MAX_SCOPES_PER_FRAME){
+            return;
+        }
+        int index = slot * MAX_SCOPES_PER_FRAME + numScopes[slot]++;
+        markers[index] = marker;
+        cpuStarts[index] = System.nanoTime();
+        glBeginQuery(GL_TIME_ELAPSED, queryIds[index]);
+        activeMarker = marker;
+    }
+
+    // Reads back the results of the frame issued FRAMES_IN_FLIGHT frames ago and reuses its queries for this one.
+    // Called once per frame before any begin()
+    public void beginFrame(){
+        currentFrame++;
+        if (!supported){
+            return;
+        }
+        int slot = currentFrame % FRAMES_IN_FLIGHT;
+        for (int i = 0; i < numScopes[slot]; i++){
+            int index = slot * MAX_SCOPES_PER_FRAME + i;
+            if (glGetQueryObjecti(queryIds[index], GL_QUERY_RESULT_AVAILABLE) == GL_FALSE){
+                dropped++;
+                continue;
+            }
+            long elapsed = glGetQueryObjecti64(queryIds[index], GL_QUERY_RESULT);
+            Profiler.recordGpu(markers[index], cpuStarts[index], elapsed, frames[slot]);
+            markers[index] = null;
+        }
+        numScopes[slot] = 0;
+        frames[slot] = Profiler.getFrame();
+    }
+
+    public void cleanup(){
+        if (supported){
+            glDeleteQueries(queryIds);
+        }
+    }
+
+    public void end(){
+        if (activeMarker != null){
+            glEndQuery(GL_TIME_ELAPSED);
+            activeMarker = null;
+        }
+    }
+
+    // Results not available when read back, so not recorded
+    public int getDropped(){
+        return dropped;
+    }
+}
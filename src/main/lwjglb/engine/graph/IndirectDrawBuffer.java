@@ -0,0 +1,98 @@
+package main.lwjglb.engine.graph;
+
+import org.joml.Vector4f;
+import org.lwjgl.system.MemoryUtil;
+
+import java.lang.Math;
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL43.*;
+/**
+ * Per frame draw commands for glMultiDrawElementsIndirect plus the per draw data the shaders read from an SSBO.
+ * Command i and draw data entry i describe the same draw; shaders find their entry with gl_DrawID plus the
+ * offset of the multi draw call that issued them.
+ * Both buffers are rewritten every frame, orphaning the previous storage so the upload does not wait on the GPU.
+ */
+public class IndirectDrawBuffer {
+    // DrawElementsIndirectCommand: count, instanceCount, firstIndex, baseVertex, baseInstance
+    public static final int COMMAND_SIZE = 5 * Integer.BYTES;
+    public static final int DRAW_DATA_BINDING = 0;
+    // std430 DrawData: vec4 diffuse, int textureLayer, padded to the struct's 16 byte alignment
+    public static final int DRAW_DATA_SIZE = 8 * Float.BYTES;
+    private int commandBufferId;
+    private ByteBuffer commands;
+    private ByteBuffer drawData;
+    private int drawDataBufferId;
+    private int numDraws;
+
+    public IndirectDrawBuffer(){
+        commandBufferId = glGenBuffers();
+        drawDataBufferId = glGenBuffers();
+        commands = MemoryUtil.memAlloc(64 * COMMAND_SIZE);
+        drawData = MemoryUtil.memAlloc(64 * DRAW_DATA_SIZE);
+    }
+
+    public void addDraw(Mesh mesh, int instanceCount, int baseInstance, Material material, int textureLayer){
+        addDraw(mesh, 0, instanceCount, baseInstance, material, textureLayer);
+    }
+
+    // lod: level of detail of the mesh to draw
+    public void addDraw(Mesh mesh, int lod, int instanceCount, int baseInstance, Material material, int textureLayer){
+        if (commands.remaining() < COMMAND_SIZE){
+            commands = MemoryUtil.memRealloc(commands, commands.capacity() * 2);
+            drawData = MemoryUtil.memRealloc(drawData, drawData.capacity() * 2);
+        }
+        commands.putInt(mesh.getNumIndices(lod));
+        commands.putInt(instanceCount);
+        commands.putInt(mesh.getFirstIndex(lod));
+        commands.putInt(mesh.getBaseVertex());
+        commands.putInt(baseInstance);
+
+        Vector4f diffuse = material.getDiffuseColor();
+        drawData.putFloat(diffuse.x).putFloat(diffuse.y).putFloat(diffuse.z).putFloat(diffuse.w);
+        drawData.putInt(textureLayer).putInt(0).putInt(0).putInt(0);
+        numDraws++;
+    }
+
+    // Binds the command buffer as draw indirect buffer and the draw data as SSBO
+    public void bind(){
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, commandBufferId);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, DRAW_DATA_BINDING, drawDataBufferId);
+    }
+
+    public void cleanup(){
+        glDeleteBuffers(commandBufferId);
+        glDeleteBuffers(drawDataBufferId);
+        MemoryUtil.memFree(commands);
+        MemoryUtil.memFree(drawData);
+    }
+
+    public void clear(){
+        commands.clear();
+        drawData.clear();
+        numDraws = 0;
+    }
+
+    public int getNumDraws(){
+        return numDraws;
+    }
+
+    public void unbind(){
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, DRAW_DATA_BINDING, 0);
+    }
+
+    private static void upload(int target, int bufferId, ByteBuffer data){
+        data.flip();
+        glBindBuffer(target, bufferId);
+        // Orphan, then fill. Never allocate an empty store, SSBO bindings of size 0 are invalid
+        glBufferData(target, Math.max(data.remaining(), DRAW_DATA_SIZE), GL_STREAM_DRAW);
+        glBufferSubData(target, 0, data);
+        glBindBuffer(target, 0);
+    }
+
+    public void upload(){
+        upload(GL_DRAW_INDIRECT_BUFFER, commandBufferId, commands);
+        upload(GL_SHADER_STORAGE_BUFFER, drawDataBufferId, drawData);
+    }
+}
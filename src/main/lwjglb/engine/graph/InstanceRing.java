@@ -0,0 +1,174 @@
+package main.lwjglb.engine.graph;
+
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.*;
+
+import static org.lwjgl.opengl.GL44.*;
+/**
+ * GPU ring buffer holding per instance data (one model matrix per instance) for FRAMES_IN_FLIGHT frames.
+ * The buffer is split in one region per frame. When buffer storage is available (GL 4.4) the whole buffer is
+ * mapped once, persistently and coherently, so writing an instance is a plain copy into GPU visible memory.
+ * A fence is placed after each frame's draws and waited on before that region is written again, which keeps
+ * the CPU from overwriting data the GPU has not consumed yet.
+ * Without buffer storage the instances are staged in an off heap buffer and uploaded with glBufferSubData.
+ */
+public class InstanceRing {
+    public static final int FRAMES_IN_FLIGHT = 3;
+    public static final int INSTANCE_SIZE = Mesh.INSTANCE_MATRIX_STRIDE;
+    private static final int INSTANCE_FLOATS = INSTANCE_SIZE / Float.BYTES;
+    private static final long FENCE_TIMEOUT_NANOS = 1_000_000_000L;
+    private final long[] fences;
+    private final boolean persistent;
+    private int frame;
+    private int generation;
+    private FloatBuffer mappedBuffer;
+    private int regionCapacity; // In instances
+    private FloatBuffer stagingBuffer;
+    private int vboId;
+    private int written; // Instances written in the current region
+
+    public InstanceRing(int initialCapacity){
+        persistent = GL.getCapabilities().OpenGL44;
+        fences = new long[FRAMES_IN_FLIGHT];
+        createBuffer(initialCapacity);
+    }
+
+    // Starts writing a new frame. Blocks only if the GPU is still reading the region from FRAMES_IN_FLIGHT frames ago
+    public void beginFrame(){
+        frame = (frame + 1) % FRAMES_IN_FLIGHT;
+        waitFence(frame);
+        written = 0;
+    }
+
+    public void cleanup(){
+        for (int i = 0; i < FRAMES_IN_FLIGHT; i++){
+            deleteFence(i);
+        }
+        deleteBuffer();
+    }
+
+    private void createBuffer(int capacity){
+        regionCapacity = capacity;
+        long size = (long) capacity * INSTANCE_SIZE * FRAMES_IN_FLIGHT;
+        if (vboId != 0){
+            deleteBuffer();
+        }
+        vboId = glGenBuffers();
+        generation++;
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        if (persistent){
+            int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+            glBufferStorage(GL_ARRAY_BUFFER, size, flags);
+            ByteBuffer mapped = glMapBufferRange(GL_ARRAY_BUFFER, 0, size, flags);
+            if (mapped == null){
+                throw new RuntimeException("Could not map instance buffer");
+            }
+            mappedBuffer = mapped.order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        else{
+            glBufferData(GL_ARRAY_BUFFER, size, GL_STREAM_DRAW);
+            stagingBuffer = MemoryUtil.memAllocFloat(capacity * INSTANCE_FLOATS);
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+
+    private void deleteBuffer(){
+        if (persistent){
+            glBindBuffer(GL_ARRAY_BUFFER, vboId);
+            glUnmapBuffer(GL_ARRAY_BUFFER);
+            glBindBuffer(GL_ARRAY_BUFFER, 0);
+            mappedBuffer = null;
+        }
+        else{
+            MemoryUtil.memFree(stagingBuffer);
+            stagingBuffer = null;
+        }
+        glDeleteBuffers(vboId);
+    }
+
+    private void deleteFence(int idx){
+        if (fences[idx] != 0){
+            glDeleteSync(fences[idx]);
+            fences[idx] = 0;
+        }
+    }
+
+    // Makes room for at least numInstances more instances in the current region
+    public void ensureCapacity(int numInstances){
+        int required = written + numInstances;
+        if (required <= regionCapacity){
+            return;
+        }
+        // Growing recreates the buffer, so everything already queued must be finished. Instances already
+        // written this frame are lost, callers reserve the whole frame before writing.
+        if (written > 0){
+            throw new IllegalStateException("Instance ring can only grow before the first write of a frame");
+        }
+        for (int i = 0; i < FRAMES_IN_FLIGHT; i++){
+            waitFence(i);
+        }
+        createBuffer(Math.max(required, regionCapacity * 2));
+    }
+
+    // Places a fence after the draws that read the current region
+    public void endFrame(){
+        deleteFence(frame);
+        fences[frame] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+
+    // Makes the instances written this frame visible to the GPU. Coherent mappings need no work
+    public void flush(){
+        if (persistent || written == 0){
+            return;
+        }
+        stagingBuffer.limit(written * INSTANCE_FLOATS);
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        glBufferSubData(GL_ARRAY_BUFFER, (long) frame * regionCapacity * INSTANCE_SIZE, stagingBuffer);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        stagingBuffer.clear();
+    }
+
+    // Bumped every time the buffer is recreated. VAOs track the buffer they were attached to by generation, as
+    // GL may hand a deleted buffer's name out again
+    public int getGeneration(){
+        return generation;
+    }
+
+    public int getVboId(){
+        return vboId;
+    }
+
+    private void waitFence(int idx){
+        long fence = fences[idx];
+        if (fence == 0){
+            return;
+        }
+        int result;
+        do{
+            result = glClientWaitSync(fence, GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT_NANOS);
+        } while (result == GL_TIMEOUT_EXPIRED);
+        if (result == GL_WAIT_FAILED){
+            throw new RuntimeException("Error waiting for instance ring fence");
+        }
+        deleteFence(idx);
+    }
+
+    // Copies one instance (16 floats of a model matrix, column major) from matrices starting at offset.
+    // Returns its index in the buffer, to be used as base instance when drawing
+    public int write(float[] matrices, int offset){
+        if (written >= regionCapacity){
+            throw new IllegalStateException("Instance ring region full, call ensureCapacity first");
+        }
+        int instance = frame * regionCapacity + written;
+        if (persistent){
+            mappedBuffer.put(instance * INSTANCE_FLOATS, matrices, offset, INSTANCE_FLOATS);
+        }
+        else{
+            stagingBuffer.put(written * INSTANCE_FLOATS, matrices, offset, INSTANCE_FLOATS);
+        }
+        written++;
+        return instance;
+    }
+}
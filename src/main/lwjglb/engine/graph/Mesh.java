@@ -1,66 +1,182 @@
 package main.lwjglb.engine.graph;
 
+import org.joml.Vector3f;
 import org.lwjgl.opengl.GL30;
-import org.lwjgl.system.*;
 
 import java.nio.*;
 import java.util.*;
 
-import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL33.*;
 
+/**
+ * Indexed geometry drawn by the scene renderer. A mesh either owns its VAO and buffers, or is a range of a
+ * MeshArena's shared buffers, in which case it starts at baseVertex / firstIndex and owns no GL objects.
+ * A mesh may have several levels of detail: index lists over the same vertices, stored back to back in its index
+ * range, full detail (level 0) first.
+ */
 public class Mesh {
+    // Per instance model matrix occupies 4 consecutive vec4 attribute slots
+    public static final int INSTANCE_MATRIX_LOCATION = 2;
+    public static final int INSTANCE_MATRIX_STRIDE = 16 * Float.BYTES;
+    private Vector3f aabbMax;
+    private Vector3f aabbMin;
+    private MeshArena arena;
+    private int baseVertex;
+    private int firstIndex;
+    private int instanceGeneration;
+    private int[] lodFirstIndex;
+    private int[] lodNumIndices;
     private int numVertices;
+    private boolean ownsVao;
     private int vaoId;
     private List<Integer> vboIdList;
 
+    // Mesh stored in arena. lodIndexCounts: # of indices of each level of detail
+    Mesh(MeshArena arena, int baseVertex, int firstIndex, int[] lodIndexCounts, Vector3f aabbMin, Vector3f aabbMax){
+        this(arena.getVaoId(), baseVertex, firstIndex, lodIndexCounts, aabbMin, aabbMax);
+        this.arena = arena;
+    }
+
+    // Mesh drawn with a VAO owned by someone else, e.g. a MeshArena
+    Mesh(int vaoId, int baseVertex, int firstIndex, int[] lodIndexCounts, Vector3f aabbMin, Vector3f aabbMax){
+        this.vaoId = vaoId;
+        this.baseVertex = baseVertex;
+        this.firstIndex = firstIndex;
+        this.aabbMin = aabbMin;
+        this.aabbMax = aabbMax;
+        setLods(lodIndexCounts);
+        vboIdList = new ArrayList<>();
+    }
+
     public Mesh(float[] positions, float[] textCoords, int[] indices){
-        try (MemoryStack stack = MemoryStack.stackPush()){
-            numVertices = indices.length;
-            //this.numVertices = numVertices;
-            vboIdList = new ArrayList<>();
-
-            vaoId = glGenVertexArrays();
-            glBindVertexArray(vaoId);
-
-            // VAO contains 3 VBOs: position, color, & indices used for rendering
-            // Positions VBO
-            int vboId = glGenBuffers();
-            vboIdList.add(vboId);
-            FloatBuffer positionsBuffer = stack.callocFloat (positions.length);
-            positionsBuffer.put(0, positions);
-            glBindBuffer(GL_ARRAY_BUFFER, vboId);
-            glBufferData(GL_ARRAY_BUFFER, positionsBuffer, GL_STATIC_DRAW);
-            glEnableVertexAttribArray(0);
-            glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
-
-            // Color VBO
-            vboId = glGenBuffers();
-            vboIdList.add(vboId);
-            FloatBuffer textCoordsBuffer = stack.callocFloat(textCoords.length);
-            textCoordsBuffer.put(0, textCoords);
-            glBindBuffer(GL_ARRAY_BUFFER, vboId);
-            glBufferData(GL_ARRAY_BUFFER, textCoordsBuffer, GL_STATIC_DRAW);
-            glEnableVertexAttribArray(1);
-            glVertexAttribPointer(1, 2, GL_FLOAT, false, 0, 0);
-
-            // Index VBO
-            vboId = glGenBuffers();
-            vboIdList.add(vboId);
-            IntBuffer indicesBuffer = stack.callocInt(indices.length);
-            indicesBuffer.put(0, indices);
-            glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, vboId);
-            glBufferData(GL_ELEMENT_ARRAY_BUFFER, indicesBuffer, GL_STATIC_DRAW);
-
-            glBindBuffer(GL_ARRAY_BUFFER, 0);
-            glBindVertexArray(0);
+        this(positions, textCoords, indices, new Vector3f(), new Vector3f());
+        calcAabb(positions, aabbMin, aabbMax);
+    }
+
+    // aabbMin, aabbMax: local space bounding box of the positions
+    // The arrays are streamed to GL through BufferUploader's staging chunk, not copied whole
+    public Mesh(float[] positions, float[] textCoords, int[] indices, Vector3f aabbMin, Vector3f aabbMax){
+        init(FloatBuffer.wrap(positions), FloatBuffer.wrap(textCoords), IntBuffer.wrap(indices), aabbMin, aabbMax);
+    }
+
+    // Uploads the buffers as they are (from position to limit), in chunks (see BufferUploader). Direct buffers,
+    // e.g. off heap or memory mapped, are uploaded without copies. They are not kept after the constructor returns
+    public Mesh(FloatBuffer positions, FloatBuffer textCoords, IntBuffer indices, Vector3f aabbMin, Vector3f aabbMax){
+        this(positions, textCoords, indices, new int[]{indices.remaining()}, aabbMin, aabbMax);
+    }
+
+    // indices holds the levels of detail back to back, lodIndexCounts the # of indices of each
+    public Mesh(FloatBuffer positions, FloatBuffer textCoords, IntBuffer indices, int[] lodIndexCounts,
+                Vector3f aabbMin, Vector3f aabbMax){
+        init(positions, textCoords, indices, aabbMin, aabbMax);
+        setLods(lodIndexCounts);
+    }
+
+    private void init(FloatBuffer positions, FloatBuffer textCoords, IntBuffer indices, Vector3f aabbMin,
+                      Vector3f aabbMax){
+        this.aabbMin = aabbMin;
+        this.aabbMax = aabbMax;
+        setLods(new int[]{indices.remaining()});
+        ownsVao = true;
+        vboIdList = new ArrayList<>();
+
+        vaoId = glGenVertexArrays();
+        glBindVertexArray(vaoId);
+
+        // VAO contains 3 VBOs: position, color, & indices used for rendering
+        // Positions VBO
+        int vboId = glGenBuffers();
+        vboIdList.add(vboId);
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        glBufferData(GL_ARRAY_BUFFER, (long) positions.remaining() * Float.BYTES, GL_STATIC_DRAW);
+        BufferUploader.upload(GL_ARRAY_BUFFER, 0, positions);
+        glEnableVertexAttribArray(0);
+        glVertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
+
+        // Color VBO
+        vboId = glGenBuffers();
+        vboIdList.add(vboId);
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        glBufferData(GL_ARRAY_BUFFER, (long) textCoords.remaining() * Float.BYTES, GL_STATIC_DRAW);
+        BufferUploader.upload(GL_ARRAY_BUFFER, 0, textCoords);
+        glEnableVertexAttribArray(1);
+        glVertexAttribPointer(1, 2, GL_FLOAT, false, 0, 0);
+
+        // Index VBO
+        vboId = glGenBuffers();
+        vboIdList.add(vboId);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, vboId);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, (long) indices.remaining() * Integer.BYTES, GL_STATIC_DRAW);
+        BufferUploader.upload(GL_ELEMENT_ARRAY_BUFFER, 0, indices);
+
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        glBindVertexArray(0);
+    }
+
+    // Stores in min and max the bounding box of positions (x, y, z triplets)
+    public static void calcAabb(float[] positions, Vector3f min, Vector3f max){
+        calcAabb(FloatBuffer.wrap(positions), min, max);
+    }
+
+    // Same as above for the positions from position to limit of the buffer, which is left unchanged
+    public static void calcAabb(FloatBuffer positions, Vector3f min, Vector3f max){
+        int start = positions.position();
+        int end = positions.limit();
+        if (end - start < 3){
+            min.zero();
+            max.zero();
+            return;
+        }
+        min.set(Float.POSITIVE_INFINITY);
+        max.set(Float.NEGATIVE_INFINITY);
+        for (int i = start; i < end; i += 3){
+            float x = positions.get(i);
+            float y = positions.get(i + 1);
+            float z = positions.get(i + 2);
+            min.set(Math.min(min.x, x), Math.min(min.y, y), Math.min(min.z, z));
+            max.set(Math.max(max.x, x), Math.max(max.y, y), Math.max(max.z, z));
         }
     }
 
     public void cleanup(){
         vboIdList.stream().forEach(GL30::glDeleteBuffers);
-        glDeleteVertexArrays(vaoId);
+        if (ownsVao){
+            glDeleteVertexArrays(vaoId);
+        }
     }
 
+    public Vector3f getAabbMax(){
+        return aabbMax;
+    }
+
+    public Vector3f getAabbMin(){
+        return aabbMin;
+    }
+
+    public int getBaseVertex(){
+        return baseVertex;
+    }
+
+    // Offset of the first index in the index buffer, in indices
+    public int getFirstIndex(){
+        return firstIndex;
+    }
+
+    // Offset of the first index of a level of detail in the index buffer, in indices
+    public int getFirstIndex(int lod){
+        return lodFirstIndex[lod];
+    }
+
+    public int getLodCount(){
+        return lodNumIndices.length;
+    }
+
+    // # of indices of a level of detail
+    public int getNumIndices(int lod){
+        return lodNumIndices[lod];
+    }
+
+    // # of indices of the full detail level
     public int getNumVertices(){
         return numVertices;
     }
@@ -68,4 +184,44 @@ public class Mesh {
     public final int getVaoId(){
         return vaoId;
     }
+
+    private void setLods(int[] lodIndexCounts){
+        lodNumIndices = lodIndexCounts.clone();
+        lodFirstIndex = new int[lodIndexCounts.length];
+        int offset = firstIndex;
+        for (int i = 0; i < lodIndexCounts.length; i++){
+            lodFirstIndex[i] = offset;
+            offset += lodIndexCounts[i];
+        }
+        numVertices = lodIndexCounts[0];
+    }
+
+    // Attaches the ring's instance VBO (one model matrix per entity) to this mesh's VAO. The VAO must be bound.
+    // The buffer is owned by the renderer, so it is not added to vboIdList. The attachment is tracked per VAO:
+    // arena meshes share the arena's VAO, so the arena tracks it for all of them. Only does work when the ring
+    // was recreated since the VAO was last attached, so it is cheap to call before every draw.
+    public void setInstanceBuffer(InstanceRing instanceRing){
+        if (arena != null){
+            arena.setInstanceBuffer(instanceRing);
+            return;
+        }
+        if (instanceGeneration == instanceRing.getGeneration()){
+            return;
+        }
+        instanceGeneration = instanceRing.getGeneration();
+        attachInstanceBuffer(instanceRing.getVboId());
+    }
+
+    // Points the instance matrix attributes of the bound VAO at instanceVboId
+    static void attachInstanceBuffer(int instanceVboId){
+        glBindBuffer(GL_ARRAY_BUFFER, instanceVboId);
+        for (int i = 0; i < 4; i++){
+            int location = INSTANCE_MATRIX_LOCATION + i;
+            glEnableVertexAttribArray(location);
+            glVertexAttribPointer(location, 4, GL_FLOAT, false, INSTANCE_MATRIX_STRIDE, (long) i * 4 * Float.BYTES);
+            // Advance once per instance instead of once per vertex
+            glVertexAttribDivisor(location, 1);
+        }
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
 }
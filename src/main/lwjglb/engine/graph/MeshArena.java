@@ -0,0 +1,213 @@
+package main.lwjglb.engine.graph;
+
+import org.joml.Vector3f;
+
+import java.lang.Math;
+import java.nio.*;
+
+import static org.lwjgl.opengl.GL33.*;
+/**
+ * Shared vertex and index storage for meshes. Every mesh allocated here lives in one interleaved vertex buffer
+ * and one index buffer behind a single VAO, so drawing meshes one after another needs no VAO or buffer switches.
+ * Meshes are drawn with base vertex / first index offsets into the shared buffers.
+ * Vertex format (16 bytes): position as 3 floats, texture coordinates as 2 half floats.
+ * Allocation is linear; buffers grow by doubling and copying on the GPU. Space is only reclaimed by cleanup().
+ * Vertices are interleaved and uploaded a staging chunk at a time (see BufferUploader), so allocating a mesh
+ * needs no temporary memory proportional to its size.
+ */
+public class MeshArena {
+    public static final int VERTEX_SIZE = 3 * Float.BYTES + 2 * Short.BYTES;
+    public static final int VERTICES_PER_CHUNK = BufferUploader.CHUNK_SIZE / VERTEX_SIZE;
+    // Past this magnitude half floats lose more than about a texel of a 1024 texture
+    private static final float HALF_FLOAT_MAX_UV = 2.0f;
+    private static final int INITIAL_INDICES = 3 * 65536;
+    private static final int INITIAL_VERTICES = 65536;
+    private int iboId;
+    private int indexCapacity;
+    private int instanceGeneration;
+    private int numIndices;
+    private int numVertices;
+    private int vaoId;
+    private int vboId;
+    private int vertexCapacity;
+
+    public MeshArena(){
+        vaoId = glGenVertexArrays();
+        vertexCapacity = INITIAL_VERTICES;
+        indexCapacity = INITIAL_INDICES;
+        vboId = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        glBufferData(GL_ARRAY_BUFFER, (long) vertexCapacity * VERTEX_SIZE, GL_STATIC_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        iboId = glGenBuffers();
+        glBindBuffer(GL_COPY_WRITE_BUFFER, iboId);
+        glBufferData(GL_COPY_WRITE_BUFFER, (long) indexCapacity * Integer.BYTES, GL_STATIC_DRAW);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+        setupVao();
+    }
+
+    // Returns true if the texture coordinates can be stored as half floats without visible loss
+    public static boolean canPack(FloatBuffer textCoords){
+        for (int i = textCoords.position(); i < textCoords.limit(); i++){
+            if (Math.abs(textCoords.get(i)) > HALF_FLOAT_MAX_UV){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void cleanup(){
+        glDeleteBuffers(vboId);
+        glDeleteBuffers(iboId);
+        glDeleteVertexArrays(vaoId);
+    }
+
+    // Copies used data to a bigger buffer and returns its name. The old buffer is deleted
+    private static int growBuffer(int bufferId, long usedBytes, long newSize){
+        int newBufferId = glGenBuffers();
+        glBindBuffer(GL_COPY_WRITE_BUFFER, newBufferId);
+        glBufferData(GL_COPY_WRITE_BUFFER, newSize, GL_STATIC_DRAW);
+        glBindBuffer(GL_COPY_READ_BUFFER, bufferId);
+        glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, 0, usedBytes);
+        glBindBuffer(GL_COPY_READ_BUFFER, 0);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+        glDeleteBuffers(bufferId);
+        return newBufferId;
+    }
+
+    // Converts a float to IEEE 754 half precision, rounding to nearest
+    public static short floatToHalf(float value){
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7fffffff;
+        int rounded = abs + 0x1000;
+        if (rounded >= 0x47800000){
+            // Too big for a half: infinity, or NaN keeping some payload
+            if (abs >= 0x7f800000){
+                return (short) (sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));
+            }
+            return (short) (sign | 0x7c00);
+        }
+        if (rounded >= 0x38800000){
+            // Normal half
+            return (short) (sign | ((rounded - 0x38000000) >>> 13));
+        }
+        if (abs < 0x33000000){
+            // Too small even for a subnormal half
+            return (short) sign;
+        }
+        // Subnormal half
+        int exp = abs >>> 23;
+        return (short) (sign | ((((abs & 0x7fffff) | 0x800000) + (0x800000 >>> (exp - 102))) >>> (126 - exp)));
+    }
+
+    public int getVaoId(){
+        return vaoId;
+    }
+
+    // Attaches the ring's instance VBO to the shared VAO, which must be bound, unless already attached since the
+    // ring was last recreated (see Mesh.setInstanceBuffer)
+    void setInstanceBuffer(InstanceRing instanceRing){
+        if (instanceGeneration == instanceRing.getGeneration()){
+            return;
+        }
+        instanceGeneration = instanceRing.getGeneration();
+        Mesh.attachInstanceBuffer(instanceRing.getVboId());
+    }
+
+    // Suballocates a mesh, reading the buffers from position to limit. Texture coordinates should pass canPack
+    public Mesh allocate(FloatBuffer positions, FloatBuffer textCoords, IntBuffer indices, Vector3f aabbMin,
+                         Vector3f aabbMax){
+        return allocate(positions, textCoords, indices, new int[]{indices.remaining()}, aabbMin, aabbMax);
+    }
+
+    // Same as above for a mesh with levels of detail: indices holds them back to back, lodIndexCounts the # of
+    // indices of each
+    public Mesh allocate(FloatBuffer positions, FloatBuffer textCoords, IntBuffer indices, int[] lodIndexCounts,
+                         Vector3f aabbMin, Vector3f aabbMax){
+        int meshVertices = positions.remaining() / 3;
+        Mesh mesh = reserve(meshVertices, lodIndexCounts, aabbMin, aabbMax);
+        uploadVertices(mesh, positions, textCoords, 0, meshVertices);
+        uploadIndices(mesh, indices, 0, indices.remaining());
+        return mesh;
+    }
+
+    private void ensureCapacity(int meshVertices, int meshIndices){
+        boolean changed = false;
+        if (numVertices + meshVertices > vertexCapacity){
+            int capacity = Math.max(numVertices + meshVertices, vertexCapacity * 2);
+            vboId = growBuffer(vboId, (long) numVertices * VERTEX_SIZE, (long) capacity * VERTEX_SIZE);
+            vertexCapacity = capacity;
+            changed = true;
+        }
+        if (numIndices + meshIndices > indexCapacity){
+            int capacity = Math.max(numIndices + meshIndices, indexCapacity * 2);
+            iboId = growBuffer(iboId, (long) numIndices * Integer.BYTES, (long) capacity * Integer.BYTES);
+            indexCapacity = capacity;
+            changed = true;
+        }
+        if (changed){
+            setupVao();
+        }
+    }
+
+    // Allocates room for a mesh of meshVertices vertices and the sum of lodIndexCounts indices, and returns the
+    // mesh. Its data is written with uploadVertices / uploadIndices, possibly a chunk per frame; it must not be
+    // drawn before all of it is
+    public Mesh reserve(int meshVertices, int[] lodIndexCounts, Vector3f aabbMin, Vector3f aabbMax){
+        int meshIndices = 0;
+        for (int count : lodIndexCounts){
+            meshIndices += count;
+        }
+        ensureCapacity(meshVertices, meshIndices);
+        Mesh mesh = new Mesh(this, numVertices, numIndices, lodIndexCounts, aabbMin, aabbMax);
+        numVertices += meshVertices;
+        numIndices += meshIndices;
+        return mesh;
+    }
+
+    // Writes count indices of a reserved mesh starting at its index first, read from indices' position + first
+    public void uploadIndices(Mesh mesh, IntBuffer indices, int first, int count){
+        glBindBuffer(GL_COPY_WRITE_BUFFER, iboId);
+        BufferUploader.upload(GL_COPY_WRITE_BUFFER, (long) (mesh.getFirstIndex() + first) * Integer.BYTES,
+                indices.slice(indices.position() + first, count));
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+    }
+
+    // Interleaves and writes count vertices of a reserved mesh starting at its vertex first, read from the
+    // buffers' position + first vertex, a staging chunk at a time
+    public void uploadVertices(Mesh mesh, FloatBuffer positions, FloatBuffer textCoords, int first, int count){
+        int p = positions.position() + first * 3;
+        int t = textCoords.position() + first * 2;
+        long offset = (long) (mesh.getBaseVertex() + first) * VERTEX_SIZE;
+        glBindBuffer(GL_COPY_WRITE_BUFFER, vboId);
+        for (int done = 0; done < count; done += VERTICES_PER_CHUNK){
+            int chunkVertices = Math.min(VERTICES_PER_CHUNK, count - done);
+            ByteBuffer chunk = BufferUploader.getChunk();
+            for (int i = 0; i < chunkVertices; i++){
+                chunk.putFloat(positions.get(p++));
+                chunk.putFloat(positions.get(p++));
+                chunk.putFloat(positions.get(p++));
+                chunk.putShort(floatToHalf(textCoords.get(t++)));
+                chunk.putShort(floatToHalf(textCoords.get(t++)));
+            }
+            chunk.flip();
+            BufferUploader.upload(GL_COPY_WRITE_BUFFER, offset, chunk);
+            offset += (long) chunkVertices * VERTEX_SIZE;
+        }
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+    }
+
+    // Points the VAO at the current buffers. Instance attributes, set up by the meshes, are left untouched
+    private void setupVao(){
+        glBindVertexArray(vaoId);
+        glBindBuffer(GL_ARRAY_BUFFER, vboId);
+        glEnableVertexAttribArray(0);
+        glVertexAttribPointer(0, 3, GL_FLOAT, false, VERTEX_SIZE, 0);
+        glEnableVertexAttribArray(1);
+        glVertexAttribPointer(1, 2, GL_HALF_FLOAT, false, VERTEX_SIZE, 3 * Float.BYTES);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, iboId);
+        glBindVertexArray(0);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+    }
+}
@@ -0,0 +1,485 @@
+package main.lwjglb.engine.graph;
+
+import java.nio.*;
+import java.util.*;
+/**
+ * Quadric error mesh simplification (Garland and Heckbert), used to generate mesh levels of detail.
+ * Each vertex accumulates the squared distance to the planes of its triangles; collapsing an edge moves one end
+ * onto the other and costs the summed quadrics evaluated there, so the cheapest collapses are taken first.
+ * Vertices are never moved or created: collapses only remap indices, so every level of detail is an index list
+ * over the original vertex buffer and all levels share it.
+ * Open borders (including texture coordinate seams, where vertices are split) get extra perpendicular planes and
+ * can only collapse along themselves, so silhouettes and seams hold. Collapses that would flip a triangle are
+ * rejected. Does not touch GL, so it can run on any thread.
+ * Working state lives in primitive arrays (open addressing edge tables, an array backed heap of collapses, linked
+ * vertex to triangle lists in a shared pool) kept by the instance and reused by later calls, so one simplifier
+ * should serve a whole import. An instance must not be shared between threads.
+ */
+public class MeshSimplifier {
+    private static final double BORDER_WEIGHT = 10.0;
+    // A collapse is rejected if a triangle's normal turns by more than about 80 degrees
+    private static final double MIN_NORMAL_DOT = 0.2;
+    private final double[] after;
+    private final double[] before;
+    private boolean[] border;
+    private final EdgeTable borderEdges;
+    private boolean[] deadTris;
+    private final EdgeTable edgeUses;
+    private int[] linkNext;
+    private int[] linkTri;
+    private final double[] normal;
+    private int numLinks;
+    private FloatBuffer positions;
+    private int positionsBase;
+    private double[] quadrics;
+    private final CollapseHeap queue;
+    private boolean[] removed;
+    private int[] triHeads;
+    private int[] tris;
+    private int[] version;
+
+    public MeshSimplifier(){
+        after = new double[3];
+        before = new double[3];
+        border = new boolean[0];
+        borderEdges = new EdgeTable();
+        deadTris = new boolean[0];
+        edgeUses = new EdgeTable();
+        linkNext = new int[64];
+        linkTri = new int[64];
+        normal = new double[3];
+        quadrics = new double[0];
+        queue = new CollapseHeap();
+        removed = new boolean[0];
+        triHeads = new int[0];
+        tris = new int[0];
+        version = new int[0];
+    }
+
+    // Returns the triangle list (indices into positions) simplified to at most targetIndexCount indices, or as
+    // close as it gets without breaking borders or flipping triangles. positions (x, y, z triplets) and indices
+    // are read from position to limit and left unchanged
+    public int[] simplify(FloatBuffer positions, IntBuffer indices, int targetIndexCount){
+        int numVertices = positions.remaining() / 3;
+        int numIndices = indices.remaining() - indices.remaining() % 3;
+        int numTris = numIndices / 3;
+        reset(positions, numVertices, numTris);
+        indices.get(indices.position(), tris, 0, numIndices);
+
+        int liveTris = numTris;
+        for (int t = 0; t < numTris; t++){
+            int a = tris[t * 3];
+            int b = tris[t * 3 + 1];
+            int c = tris[t * 3 + 2];
+            double area = triangleNormal(a, b, c, normal);
+            if (a == b || b == c || a == c || area == 0){
+                deadTris[t] = true;
+                liveTris--;
+                continue;
+            }
+            double d = -(normal[0] * coord(a, 0) + normal[1] * coord(a, 1) + normal[2] * coord(a, 2));
+            for (int i = 0; i < 3; i++){
+                int v = tris[t * 3 + i];
+                addPlane(v, normal[0], normal[1], normal[2], d, area);
+                addTri(v, t);
+                edgeUses.add(edgeKey(v, tris[t * 3 + (i + 1) % 3]), 1);
+            }
+        }
+
+        // Edges used by a single triangle are borders: constrain them with a plane through the edge, perpendicular
+        // to the triangle
+        for (int t = 0; t < numTris; t++){
+            if (deadTris[t]){
+                continue;
+            }
+            triangleNormal(tris[t * 3], tris[t * 3 + 1], tris[t * 3 + 2], normal);
+            for (int i = 0; i < 3; i++){
+                int a = tris[t * 3 + i];
+                int b = tris[t * 3 + (i + 1) % 3];
+                if (edgeUses.get(edgeKey(a, b)) != 1){
+                    continue;
+                }
+                border[a] = true;
+                border[b] = true;
+                borderEdges.add(edgeKey(a, b), 1);
+                double ex = coord(b, 0) - coord(a, 0);
+                double ey = coord(b, 1) - coord(a, 1);
+                double ez = coord(b, 2) - coord(a, 2);
+                double nx = ey * normal[2] - ez * normal[1];
+                double ny = ez * normal[0] - ex * normal[2];
+                double nz = ex * normal[1] - ey * normal[0];
+                double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+                if (length == 0){
+                    continue;
+                }
+                nx /= length;
+                ny /= length;
+                nz /= length;
+                double d = -(nx * coord(a, 0) + ny * coord(a, 1) + nz * coord(a, 2));
+                double weight = (ex * ex + ey * ey + ez * ez) * BORDER_WEIGHT;
+                addPlane(a, nx, ny, nz, d, weight);
+                addPlane(b, nx, ny, nz, d, weight);
+            }
+        }
+
+        for (int i = 0; i < edgeUses.keys.length; i++){
+            long key = edgeUses.keys[i];
+            if (key != EdgeTable.EMPTY){
+                int a = (int) (key >>> 32);
+                int b = (int) key;
+                pushCollapse(a, b);
+                pushCollapse(b, a);
+            }
+        }
+
+        while (liveTris * 3 > targetIndexCount && queue.size > 0){
+            int from = queue.froms[0];
+            int to = queue.tos[0];
+            boolean stale = queue.fromVersions[0] != version[from] || queue.toVersions[0] != version[to];
+            queue.removeTop();
+            if (stale || removed[from] || removed[to] || flips(from, to)){
+                continue;
+            }
+
+            removed[from] = true;
+            version[to]++;
+            for (int i = 0; i < 10; i++){
+                quadrics[to * 10 + i] += quadrics[from * 10 + i];
+            }
+            for (int link = triHeads[from]; link >= 0; link = linkNext[link]){
+                int t = linkTri[link];
+                if (deadTris[t]){
+                    continue;
+                }
+                for (int j = 0; j < 3; j++){
+                    int other = tris[t * 3 + j];
+                    if (other == from){
+                        tris[t * 3 + j] = to;
+                    }
+                    else if (border[from] && other != to && borderEdges.get(edgeKey(from, other)) != 0){
+                        // The border now runs through the merged vertex
+                        borderEdges.add(edgeKey(to, other), 1);
+                    }
+                }
+                int a = tris[t * 3];
+                int b = tris[t * 3 + 1];
+                int c = tris[t * 3 + 2];
+                if (a == b || b == c || a == c){
+                    deadTris[t] = true;
+                    liveTris--;
+                }
+                else{
+                    addTri(to, t);
+                }
+            }
+
+            // Collapses touching the merged vertex have new costs; the queued ones are stale through its version
+            for (int link = triHeads[to]; link >= 0; link = linkNext[link]){
+                int t = linkTri[link];
+                if (deadTris[t]){
+                    continue;
+                }
+                for (int j = 0; j < 3; j++){
+                    int other = tris[t * 3 + j];
+                    if (other != to){
+                        pushCollapse(to, other);
+                        pushCollapse(other, to);
+                    }
+                }
+            }
+        }
+
+        int[] result = new int[liveTris * 3];
+        int n = 0;
+        for (int t = 0; t < numTris; t++){
+            if (!deadTris[t]){
+                result[n++] = tris[t * 3];
+                result[n++] = tris[t * 3 + 1];
+                result[n++] = tris[t * 3 + 2];
+            }
+        }
+        this.positions = null;
+        return result;
+    }
+
+    private void addPlane(int v, double a, double b, double c, double d, double weight){
+        int q = v * 10;
+        quadrics[q] += weight * a * a;
+        quadrics[q + 1] += weight * a * b;
+        quadrics[q + 2] += weight * a * c;
+        quadrics[q + 3] += weight * a * d;
+        quadrics[q + 4] += weight * b * b;
+        quadrics[q + 5] += weight * b * c;
+        quadrics[q + 6] += weight * b * d;
+        quadrics[q + 7] += weight * c * c;
+        quadrics[q + 8] += weight * c * d;
+        quadrics[q + 9] += weight * d * d;
+    }
+
+    // Links triangle t to vertex v, taking a node from the shared pool
+    private void addTri(int v, int t){
+        if (numLinks == linkTri.length){
+            linkTri = Arrays.copyOf(linkTri, numLinks * 2);
+            linkNext = Arrays.copyOf(linkNext, numLinks * 2);
+        }
+        linkTri[numLinks] = t;
+        linkNext[numLinks] = triHeads[v];
+        triHeads[v] = numLinks++;
+    }
+
+    private double coord(int v, int axis){
+        return positions.get(positionsBase + v * 3 + axis);
+    }
+
+    private static long edgeKey(int a, int b){
+        return ((long) Math.min(a, b) << 32) | Math.max(a, b);
+    }
+
+    // Quadric error of moving vertex from onto vertex to
+    private double error(int from, int to){
+        int qa = from * 10;
+        int qb = to * 10;
+        double x = coord(to, 0);
+        double y = coord(to, 1);
+        double z = coord(to, 2);
+        double[] q = quadrics;
+        return (q[qa] + q[qb]) * x * x + 2 * (q[qa + 1] + q[qb + 1]) * x * y + 2 * (q[qa + 2] + q[qb + 2]) * x * z +
+                2 * (q[qa + 3] + q[qb + 3]) * x + (q[qa + 4] + q[qb + 4]) * y * y + 2 * (q[qa + 5] + q[qb + 5]) * y * z +
+                2 * (q[qa + 6] + q[qb + 6]) * y + (q[qa + 7] + q[qb + 7]) * z * z + 2 * (q[qa + 8] + q[qb + 8]) * z +
+                q[qa + 9] + q[qb + 9];
+    }
+
+    // Whether moving vertex from onto vertex to flips or degenerates a triangle that survives the collapse
+    private boolean flips(int from, int to){
+        for (int link = triHeads[from]; link >= 0; link = linkNext[link]){
+            int t = linkTri[link];
+            int a = tris[t * 3];
+            int b = tris[t * 3 + 1];
+            int c = tris[t * 3 + 2];
+            if (deadTris[t] || a == to || b == to || c == to){
+                continue;
+            }
+            triangleNormal(a, b, c, before);
+            double area = triangleNormal(a == from ? to : a, b == from ? to : b, c == from ? to : c, after);
+            if (area == 0 || before[0] * after[0] + before[1] * after[1] + before[2] * after[2] < MIN_NORMAL_DOT){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void pushCollapse(int from, int to){
+        // Border vertices may only slide along their border
+        if (border[from] && (!border[to] || borderEdges.get(edgeKey(from, to)) == 0)){
+            return;
+        }
+        queue.push(error(from, to), from, to, version[from], version[to]);
+    }
+
+    // Sizes and clears the working state for a mesh, growing the arrays only when they are too small
+    private void reset(FloatBuffer positions, int numVertices, int numTris){
+        this.positions = positions;
+        positionsBase = positions.position();
+        if (tris.length < numTris * 3){
+            tris = new int[numTris * 3];
+            deadTris = new boolean[numTris];
+        }
+        if (version.length < numVertices){
+            border = new boolean[numVertices];
+            quadrics = new double[numVertices * 10];
+            removed = new boolean[numVertices];
+            triHeads = new int[numVertices];
+            version = new int[numVertices];
+        }
+        Arrays.fill(deadTris, 0, numTris, false);
+        Arrays.fill(border, 0, numVertices, false);
+        Arrays.fill(quadrics, 0, numVertices * 10, 0);
+        Arrays.fill(removed, 0, numVertices, false);
+        Arrays.fill(triHeads, 0, numVertices, -1);
+        Arrays.fill(version, 0, numVertices, 0);
+        numLinks = 0;
+        edgeUses.clear(numTris * 3);
+        borderEdges.clear(numTris);
+        queue.size = 0;
+    }
+
+    // Stores the unit normal of triangle a, b, c in normal and returns its area
+    private double triangleNormal(int a, int b, int c, double[] normal){
+        double ax = coord(a, 0);
+        double ay = coord(a, 1);
+        double az = coord(a, 2);
+        double ux = coord(b, 0) - ax;
+        double uy = coord(b, 1) - ay;
+        double uz = coord(b, 2) - az;
+        double vx = coord(c, 0) - ax;
+        double vy = coord(c, 1) - ay;
+        double vz = coord(c, 2) - az;
+        double nx = uy * vz - uz * vy;
+        double ny = uz * vx - ux * vz;
+        double nz = ux * vy - uy * vx;
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length == 0){
+            normal[0] = normal[1] = normal[2] = 0;
+            return 0;
+        }
+        normal[0] = nx / length;
+        normal[1] = ny / length;
+        normal[2] = nz / length;
+        return length * 0.5;
+    }
+
+    /**
+     * Binary min heap of candidate collapses by cost, in parallel primitive arrays. The cheapest one is at index 0
+     */
+    private static final class CollapseHeap {
+        private double[] costs;
+        private int[] fromVersions;
+        private int[] froms;
+        private int size;
+        private int[] toVersions;
+        private int[] tos;
+
+        CollapseHeap(){
+            costs = new double[64];
+            fromVersions = new int[64];
+            froms = new int[64];
+            toVersions = new int[64];
+            tos = new int[64];
+        }
+
+        private void move(int src, int dst){
+            costs[dst] = costs[src];
+            froms[dst] = froms[src];
+            tos[dst] = tos[src];
+            fromVersions[dst] = fromVersions[src];
+            toVersions[dst] = toVersions[src];
+        }
+
+        void push(double cost, int from, int to, int fromVersion, int toVersion){
+            if (size == costs.length){
+                int capacity = size * 2;
+                costs = Arrays.copyOf(costs, capacity);
+                fromVersions = Arrays.copyOf(fromVersions, capacity);
+                froms = Arrays.copyOf(froms, capacity);
+                toVersions = Arrays.copyOf(toVersions, capacity);
+                tos = Arrays.copyOf(tos, capacity);
+            }
+            int i = size++;
+            while (i > 0){
+                int parent = (i - 1) >>> 1;
+                if (costs[parent] <= cost){
+                    break;
+                }
+                move(parent, i);
+                i = parent;
+            }
+            costs[i] = cost;
+            froms[i] = from;
+            tos[i] = to;
+            fromVersions[i] = fromVersion;
+            toVersions[i] = toVersion;
+        }
+
+        // Removes the cheapest collapse, moving the last one down from the top
+        void removeTop(){
+            size--;
+            if (size == 0){
+                return;
+            }
+            double cost = costs[size];
+            int i = 0;
+            while (true){
+                int child = 2 * i + 1;
+                if (child >= size){
+                    break;
+                }
+                if (child + 1 < size && costs[child + 1] < costs[child]){
+                    child++;
+                }
+                if (costs[child] >= cost){
+                    break;
+                }
+                move(child, i);
+                i = child;
+            }
+            move(size, i);
+        }
+    }
+
+    /**
+     * Open addressing hash table from edge key to a count, with linear probing. Key 0 would be the degenerate edge
+     * (0, 0), never stored, so it marks empty slots
+     */
+    private static final class EdgeTable {
+        static final long EMPTY = 0;
+        private int count;
+        private long[] keys;
+        private int mask;
+        private int[] values;
+
+        EdgeTable(){
+            keys = new long[16];
+            values = new int[16];
+            mask = keys.length - 1;
+        }
+
+        // Adds delta to the count of key, inserting it if missing
+        void add(long key, int delta){
+            int slot = slot(key);
+            if (keys[slot] == EMPTY){
+                if ((count + 1) * 2 > keys.length){
+                    rehash(keys.length * 2);
+                    slot = slot(key);
+                }
+                keys[slot] = key;
+                values[slot] = 0;
+                count++;
+            }
+            values[slot] += delta;
+        }
+
+        // Empties the table, sized for about expected keys
+        void clear(int expected){
+            int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+            if (keys.length < capacity){
+                keys = new long[capacity];
+                values = new int[capacity];
+                mask = capacity - 1;
+            }
+            else{
+                Arrays.fill(keys, EMPTY);
+            }
+            count = 0;
+        }
+
+        // Count of key, 0 if missing
+        int get(long key){
+            int slot = slot(key);
+            return keys[slot] == EMPTY ? 0 : values[slot];
+        }
+
+        private void rehash(int capacity){
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++){
+                if (oldKeys[i] != EMPTY){
+                    int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        // Slot holding key, or the empty slot where it would go
+        private int slot(long key){
+            int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != key){
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
@@ -1,21 +1,41 @@
 package main.lwjglb.engine.graph;
 
 import main.lwjglb.engine.scene.Entity; 
+import org.joml.Vector3f;
 import java.util.*;
 
 public class Model {
     private final String id;
+    private Vector3f aabbMax;
+    private Vector3f aabbMin;
+    // Index of the model in the RenderSnapshot capture stamped captureId, used to bucket its visible entities
+    int captureBucket;
+    long captureId;
     private List<Entity> entitiesList;
     private List<Material> materialList;
+    private boolean released;
 
     public Model(String id, List<Material> materialList){
         this.id = id;
         entitiesList = new ArrayList<>();
         this.materialList = materialList;
+        aabbMin = new Vector3f();
+        aabbMax = new Vector3f();
+        updateAabb();
     }
 
     public void cleanup(){
         materialList.stream().forEach(Material::cleanup);
+        released = true;
+    }
+
+    // Local space bounds enclosing all the meshes of the model
+    public Vector3f getAabbMax(){
+        return aabbMax;
+    }
+
+    public Vector3f getAabbMin(){
+        return aabbMin;
     }
 
     public List<Entity> getEntitiesList(){
@@ -29,4 +49,27 @@ public class Model {
     public List<Material> getMaterialList(){
         return materialList;
     }
+
+    // Whether cleanup was called, so the meshes are gone. Render snapshots captured before may still list it
+    public boolean isReleased(){
+        return released;
+    }
+
+    // Recalculates the model bounds from its meshes. Call it if meshes are added after the model is created
+    public void updateAabb(){
+        boolean empty = true;
+        for (Material material : materialList){
+            for (Mesh mesh : material.getMeshList()){
+                if (empty){
+                    aabbMin.set(mesh.getAabbMin());
+                    aabbMax.set(mesh.getAabbMax());
+                    empty = false;
+                }
+                else{
+                    aabbMin.min(mesh.getAabbMin());
+                    aabbMax.max(mesh.getAabbMax());
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,59 @@
+package main.lwjglb.engine.graph;
+
+import static org.lwjgl.opengl.GL30.*;
+/**
+ * Framebuffer object with an RGBA8 color and a 24 bit depth renderbuffer, used as the render target in headless
+ * mode: a hidden window's default framebuffer may discard fragments it does not own, an FBO always draws them all.
+ */
+public class OffscreenFramebuffer {
+    private final int colorRenderbufferId;
+    private final int depthRenderbufferId;
+    private final int fboId;
+    private int height;
+    private int width;
+
+    public OffscreenFramebuffer(int width, int height){
+        fboId = glGenFramebuffers();
+        colorRenderbufferId = glGenRenderbuffers();
+        depthRenderbufferId = glGenRenderbuffers();
+        resize(width, height);
+    }
+
+    public void bind(){
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+    }
+
+    public void cleanup(){
+        glDeleteFramebuffers(fboId);
+        glDeleteRenderbuffers(colorRenderbufferId);
+        glDeleteRenderbuffers(depthRenderbufferId);
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    // Reallocates the renderbuffers at the new size and checks the framebuffer is complete
+    public void resize(int width, int height){
+        this.width = width;
+        this.height = height;
+        glBindRenderbuffer(GL_RENDERBUFFER, colorRenderbufferId);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_RGBA8, width, height);
+        glBindRenderbuffer(GL_RENDERBUFFER, depthRenderbufferId);
+        glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT24, width, height);
+        glBindRenderbuffer(GL_RENDERBUFFER, 0);
+
+        glBindFramebuffer(GL_FRAMEBUFFER, fboId);
+        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER, colorRenderbufferId);
+        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, depthRenderbufferId);
+        int status = glCheckFramebufferStatus(GL_FRAMEBUFFER);
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+        if (status != GL_FRAMEBUFFER_COMPLETE){
+            throw new RuntimeException("Offscreen framebuffer is not complete [" + Integer.toHexString(status) + "]");
+        }
+    }
+}
@@ -1,14 +1,20 @@
 package main.lwjglb.engine.graph;
 
 import org.lwjgl.opengl.GL;
+import main.lwjglb.engine.Profiler;
 import main.lwjglb.engine.Window;
 import main.lwjglb.engine.scene.Scene;
 
 import static org.lwjgl.opengl.GL11.*;
 /**
  * Clears screen
+ * The scene render is timed on the CPU and, with GPU timer queries, on the GPU
+ * Headless windows are rendered into an offscreen framebuffer of the window's size
  */
 public class Render {
+    private static final Profiler.Marker SCENE = Profiler.marker("scene");
+    private GpuTimerPool gpuTimerPool;
+    private OffscreenFramebuffer offscreenFramebuffer;
     private SceneRender sceneRender;
 
     public Render() {
@@ -17,16 +23,57 @@ public class Render {
         glEnable(GL_CULL_FACE);
         glCullFace(GL_BACK);
         sceneRender = new SceneRender();
+        gpuTimerPool = new GpuTimerPool();
     }
 
     public void cleanup(){
         sceneRender.cleanup();
+        gpuTimerPool.cleanup();
+        BufferUploader.cleanup();
+        if (offscreenFramebuffer != null){
+            offscreenFramebuffer.cleanup();
+        }
     }
 
-    public void render(Window window, Scene scene) {
+    // Binds the render target (offscreen when headless, created or resized to the window), clears it and
+    // sets the viewport
+    private void beginFrame(Window window){
+        if (window.isHeadless()){
+            if (offscreenFramebuffer == null){
+                offscreenFramebuffer = new OffscreenFramebuffer(window.getWidth(), window.getHeight());
+            }
+            else if (offscreenFramebuffer.getWidth() != window.getWidth() ||
+                    offscreenFramebuffer.getHeight() != window.getHeight()){
+                offscreenFramebuffer.resize(window.getWidth(), window.getHeight());
+            }
+            offscreenFramebuffer.bind();
+        }
         glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
         glViewport(0, 0, window.getWidth(), window.getHeight());
+        gpuTimerPool.beginFrame();
+    }
+
+    public void render(Window window, Scene scene) {
+        render(window, scene, 1.0f);
+    }
+
+    // alpha: fraction of the current update step elapsed, used to interpolate between update states
+    public void render(Window window, Scene scene, float alpha) {
+        beginFrame(window);
+        SCENE.begin();
+        gpuTimerPool.begin(SCENE);
+        sceneRender.render(scene, alpha);
+        gpuTimerPool.end();
+        SCENE.end();
+    }
 
-        sceneRender.render(scene);
+    // Renders a snapshot captured from the scene, e.g. by the engine's simulation thread in pipelined mode
+    public void render(Window window, Scene scene, RenderSnapshot snapshot) {
+        beginFrame(window);
+        SCENE.begin();
+        gpuTimerPool.begin(SCENE);
+        sceneRender.render(scene, snapshot);
+        gpuTimerPool.end();
+        SCENE.end();
     }
 }
@@ -0,0 +1,140 @@
+package main.lwjglb.engine.graph;
+
+import java.util.Arrays;
+/**
+ * List of draw items for a frame, sorted by render state so consecutive items share as much state as possible.
+ * Each item gets a 64 bit sort key, from most to least significant:
+ * program (6 bits) | texture (14 bits) | VAO (13 bits) | depth (10 bits) | item index (20 bits).
+ * GL names are masked to fit, so two names may share a slot; that only affects ordering, the renderer still
+ * compares the real names before skipping a state change. Depth sorts items with the same state front to back.
+ * The item index makes keys unique and maps a sorted key back to its item, so sorting is a plain long[] sort.
+ */
+public class RenderQueue {
+    public static final int MAX_ITEMS = 1 << 20;
+    private static final int DEPTH_BITS = 10;
+    private static final int DEPTH_SHIFT = 20;
+    private static final long INDEX_MASK = MAX_ITEMS - 1;
+    private static final int PROGRAM_BITS = 6;
+    private static final int PROGRAM_SHIFT = 57;
+    private static final int TEXTURE_BITS = 14;
+    private static final int TEXTURE_SHIFT = 43;
+    private static final int VAO_BITS = 13;
+    private static final int VAO_SHIFT = 30;
+    private int[] baseInstances;
+    private int[] instanceCounts;
+    private long[] keys;
+    private int[] lods;
+    private Material[] materials;
+    private Mesh[] meshes;
+    private int[] programIds;
+    private int size;
+    private Texture[] textures;
+
+    public RenderQueue(){
+        int capacity = 64;
+        baseInstances = new int[capacity];
+        instanceCounts = new int[capacity];
+        keys = new long[capacity];
+        lods = new int[capacity];
+        materials = new Material[capacity];
+        meshes = new Mesh[capacity];
+        programIds = new int[capacity];
+        textures = new Texture[capacity];
+    }
+
+    // depth: normalized view distance in [0, 1], used to draw items with the same state front to back
+    public void add(int programId, Texture texture, Material material, Mesh mesh, int baseInstance,
+                    int instanceCount, float depth){
+        add(programId, texture, material, mesh, 0, baseInstance, instanceCount, depth);
+    }
+
+    // lod: level of detail of the mesh to draw
+    public void add(int programId, Texture texture, Material material, Mesh mesh, int lod, int baseInstance,
+                    int instanceCount, float depth){
+        if (size == MAX_ITEMS){
+            throw new RuntimeException("Render queue is full [" + MAX_ITEMS + "]");
+        }
+        if (size == keys.length){
+            grow(keys.length * 2);
+        }
+        int item = size++;
+        programIds[item] = programId;
+        textures[item] = texture;
+        materials[item] = material;
+        meshes[item] = mesh;
+        lods[item] = lod;
+        baseInstances[item] = baseInstance;
+        instanceCounts[item] = instanceCount;
+
+        long depthBits = (long) (Math.min(Math.max(depth, 0.0f), 1.0f) * ((1 << DEPTH_BITS) - 1));
+        keys[item] = field(programId, PROGRAM_BITS, PROGRAM_SHIFT) |
+                field(texture.getTextureId(), TEXTURE_BITS, TEXTURE_SHIFT) |
+                field(mesh.getVaoId(), VAO_BITS, VAO_SHIFT) |
+                depthBits << DEPTH_SHIFT |
+                item;
+    }
+
+    public void clear(){
+        // Drop references so unloaded models are not kept alive by the queue
+        Arrays.fill(materials, 0, size, null);
+        Arrays.fill(meshes, 0, size, null);
+        Arrays.fill(textures, 0, size, null);
+        size = 0;
+    }
+
+    private static long field(int value, int bits, int shift){
+        return ((long) value & ((1L << bits) - 1)) << shift;
+    }
+
+    // Getters take a position in sorted order
+    public int getBaseInstance(int pos){
+        return baseInstances[item(pos)];
+    }
+
+    public int getInstanceCount(int pos){
+        return instanceCounts[item(pos)];
+    }
+
+    public int getLod(int pos){
+        return lods[item(pos)];
+    }
+
+    public Material getMaterial(int pos){
+        return materials[item(pos)];
+    }
+
+    public Mesh getMesh(int pos){
+        return meshes[item(pos)];
+    }
+
+    public int getProgramId(int pos){
+        return programIds[item(pos)];
+    }
+
+    public Texture getTexture(int pos){
+        return textures[item(pos)];
+    }
+
+    private void grow(int capacity){
+        baseInstances = Arrays.copyOf(baseInstances, capacity);
+        instanceCounts = Arrays.copyOf(instanceCounts, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        lods = Arrays.copyOf(lods, capacity);
+        materials = Arrays.copyOf(materials, capacity);
+        meshes = Arrays.copyOf(meshes, capacity);
+        programIds = Arrays.copyOf(programIds, capacity);
+        textures = Arrays.copyOf(textures, capacity);
+    }
+
+    private int item(int pos){
+        return (int) (keys[pos] & INDEX_MASK);
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public void sort(){
+        Arrays.sort(keys, 0, size);
+    }
+}
@@ -0,0 +1,230 @@
+package main.lwjglb.engine.graph;
+
+import main.lwjglb.engine.Profiler;
+import main.lwjglb.engine.scene.*;
+import org.joml.*;
+
+import java.lang.Math;
+import java.util.*;
+/**
+ * Everything SceneRender needs from the scene for one frame, copied out of it: camera and projection matrices,
+ * camera position, the visible entities of each model (frustum culled) with their transform handles and
+ * interpolated matrices, and the draw data of those models: their meshes with materials and texture paths,
+ * highest level of detail and bounding sphere radius.
+ * The visible entities come from the scene's bounding volume hierarchy and are bucketed by model with a counting
+ * pass, so capturing costs the number of visible entities rather than the number in the scene.
+ * Rendering from a snapshot does not read the transform store, hierarchy, entities or model lists, so in the
+ * engine's pipelined mode the simulation can capture the next snapshot on its thread while the GL thread renders
+ * this one. The models are kept only to check Model.isReleased, which is set on the GL thread.
+ */
+public class RenderSnapshot {
+    private static final Profiler.Marker CAPTURE = Profiler.marker("capture");
+    private static long captures;
+    private final Vector3f cameraPosition;
+    private Material[] drawMaterials;
+    private Mesh[] drawMeshes;
+    private int[] drawStarts; // Per model, index of its first draw; its draws end where model i + 1's start
+    private String[] drawTexturePaths;
+    private int[] entityBuckets; // Per entity of the BVH query, index of its model in models, or -1
+    private final FrustumIntersection frustum;
+    private int[] handles;
+    private float[] matrices;
+    private int[] modelMaxLods;
+    private float[] modelRadii;
+    private int[] modelStarts;
+    private final List<Model> models;
+    private int numDraws;
+    private int numEntities;
+    private final Matrix4f projMatrix;
+    private final Matrix4f projViewMatrix;
+    private final Matrix4f viewMatrix;
+
+    public RenderSnapshot(){
+        cameraPosition = new Vector3f();
+        drawMaterials = new Material[64];
+        drawMeshes = new Mesh[64];
+        drawStarts = new int[16];
+        drawTexturePaths = new String[64];
+        entityBuckets = new int[64];
+        frustum = new FrustumIntersection();
+        handles = new int[64];
+        matrices = new float[64 * 16];
+        modelMaxLods = new int[16];
+        modelRadii = new float[16];
+        modelStarts = new int[16];
+        models = new ArrayList<>();
+        projMatrix = new Matrix4f();
+        projViewMatrix = new Matrix4f();
+        viewMatrix = new Matrix4f();
+    }
+
+    // Interpolates the scene transforms with alpha (fraction of the current update step elapsed), culls the
+    // entities against the view frustum and copies what is visible. Must run where the scene can be read safely:
+    // on the thread updating it, or while it is not being updated
+    public void capture(Scene scene, float alpha){
+        CAPTURE.begin();
+        scene.interpolateTransforms(alpha);
+        projMatrix.set(scene.getProjection().getProjMatrix());
+        viewMatrix.set(scene.getCamera().getViewMatrix());
+        cameraPosition.set(scene.getCamera().getPosition());
+
+        // Cull against the frustum of projection x view
+        projViewMatrix.set(projMatrix).mul(viewMatrix);
+        frustum.set(projViewMatrix);
+        BoundingVolumeHierarchy bvh = scene.getBvh();
+        bvh.query(frustum);
+
+        int numVisible = bvh.getNumVisible();
+        if (handles.length < numVisible){
+            handles = new int[numVisible * 2];
+            entityBuckets = new int[numVisible * 2];
+            matrices = new float[numVisible * 2 * 16];
+        }
+
+        // Count the visible entities of each model, in modelStarts[bucket + 1]
+        long captureId = ++captures;
+        EntityRegistry registry = scene.getEntityRegistry();
+        models.clear();
+        numDraws = 0;
+        numEntities = 0;
+        for (int i = 0; i < numVisible; i++){
+            Model model = registry.getModel(bvh.getVisibleEntity(i).getEntityHandle());
+            if (model == null){
+                entityBuckets[i] = -1; // Inserted in the hierarchy without being added to the scene
+                continue;
+            }
+            if (model.captureId != captureId){
+                model.captureId = captureId;
+                model.captureBucket = models.size();
+                models.add(model);
+                captureModel(model, model.captureBucket);
+                modelStarts[models.size()] = 0;
+            }
+            entityBuckets[i] = model.captureBucket;
+            modelStarts[model.captureBucket + 1]++;
+            numEntities++;
+        }
+        modelStarts[0] = 0;
+        for (int b = 1; b <= models.size(); b++){
+            modelStarts[b] += modelStarts[b - 1];
+        }
+
+        // Place each entity at the next free index of its model's range, advancing modelStarts[bucket] to the
+        // range's end, then shift the starts back
+        float[] renderMatrices = scene.getTransformStore().getRenderMatrices();
+        for (int i = 0; i < numVisible; i++){
+            int bucket = entityBuckets[i];
+            if (bucket < 0){
+                continue;
+            }
+            Entity entity = bvh.getVisibleEntity(i);
+            int index = modelStarts[bucket]++;
+            handles[index] = entity.getHandle();
+            System.arraycopy(renderMatrices, entity.getHandle() * 16, matrices, index * 16, 16);
+        }
+        for (int b = models.size(); b > 0; b--){
+            modelStarts[b] = modelStarts[b - 1];
+        }
+        modelStarts[0] = 0;
+        // Drop references to materials and meshes from earlier, bigger captures
+        Arrays.fill(drawMaterials, numDraws, drawMaterials.length, null);
+        Arrays.fill(drawMeshes, numDraws, drawMeshes.length, null);
+        Arrays.fill(drawTexturePaths, numDraws, drawTexturePaths.length, null);
+        CAPTURE.end();
+    }
+
+    // Copies the draw data of a model into bucket: a draw per mesh, its highest level of detail and the radius of
+    // the sphere around its bounds
+    private void captureModel(Model model, int bucket){
+        if (bucket + 1 >= modelStarts.length){
+            int capacity = modelStarts.length * 2;
+            drawStarts = Arrays.copyOf(drawStarts, capacity);
+            modelMaxLods = Arrays.copyOf(modelMaxLods, capacity);
+            modelRadii = Arrays.copyOf(modelRadii, capacity);
+            modelStarts = Arrays.copyOf(modelStarts, capacity);
+        }
+        int maxLod = 0;
+        drawStarts[bucket] = numDraws;
+        for (Material material : model.getMaterialList()){
+            for (Mesh mesh : material.getMeshList()){
+                if (numDraws == drawMeshes.length){
+                    drawMaterials = Arrays.copyOf(drawMaterials, numDraws * 2);
+                    drawMeshes = Arrays.copyOf(drawMeshes, numDraws * 2);
+                    drawTexturePaths = Arrays.copyOf(drawTexturePaths, numDraws * 2);
+                }
+                drawMaterials[numDraws] = material;
+                drawMeshes[numDraws] = mesh;
+                drawTexturePaths[numDraws] = material.getTexturePath();
+                numDraws++;
+                maxLod = Math.max(maxLod, mesh.getLodCount() - 1);
+            }
+        }
+        drawStarts[bucket + 1] = numDraws;
+        modelMaxLods[bucket] = maxLod;
+        modelRadii[bucket] = model.getAabbMax().distance(model.getAabbMin()) * 0.5f;
+    }
+
+    public Vector3f getCameraPosition(){
+        return cameraPosition;
+    }
+
+    public Material getDrawMaterial(int i){
+        return drawMaterials[i];
+    }
+
+    public Mesh getDrawMesh(int i){
+        return drawMeshes[i];
+    }
+
+    // Index of the first draw of model i; the model's draws end where model i + 1's start
+    public int getDrawStart(int i){
+        return drawStarts[i];
+    }
+
+    // Texture path of the material of draw i, as it was when captured
+    public String getDrawTexturePath(int i){
+        return drawTexturePaths[i];
+    }
+
+    // Transform store handle of visible entity i, in capture order
+    public int getHandle(int i){
+        return handles[i];
+    }
+
+    // Model matrices of the visible entities, 16 floats each starting at i * 16
+    public float[] getMatrices(){
+        return matrices;
+    }
+
+    // Highest level of detail of the meshes of model i
+    public int getModelMaxLod(int i){
+        return modelMaxLods[i];
+    }
+
+    // Radius of the sphere around the local bounds of model i
+    public float getModelRadius(int i){
+        return modelRadii[i];
+    }
+
+    // Index of the first visible entity of model i; the model's entities end where model i + 1's start
+    public int getModelStart(int i){
+        return modelStarts[i];
+    }
+
+    // Models with visible entities. Only to check Model.isReleased: their other data is read through the getters above
+    public List<Model> getModels(){
+        return models;
+    }
+
+    public int getNumEntities(){
+        return numEntities;
+    }
+
+    public Matrix4f getProjMatrix(){
+        return projMatrix;
+    }
+
+    public Matrix4f getViewMatrix(){
+        return viewMatrix;
+    }
+}
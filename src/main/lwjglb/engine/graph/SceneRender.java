@@ -1,16 +1,64 @@
 package main.lwjglb.engine.graph;
 
+import main.lwjglb.engine.Profiler;
 import main.lwjglb.engine.scene.*;
+import org.joml.*;
+import org.lwjgl.opengl.GL;
 
+import java.lang.Math;
+import java.nio.ByteBuffer;
 import java.util.*;
 
-import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL43.*;
 /**
- * Performs the render of all models in the scene
+ * Performs the render of all models in the scene.
+ * The scene is read through a RenderSnapshot: entities outside the view frustum are culled when it is captured,
+ * by querying the scene's bounding volume hierarchy.
+ * Visible entities are drawn instanced: their model matrices are written once per frame into the instance
+ * ring, and each mesh costs a single draw call starting at its model's base instance.
+ * Draws are collected in a render queue sorted by program, texture and VAO, so binds and uniform uploads
+ * that would not change any state are skipped.
+ * Textures are layers of texture arrays, so items of different materials usually share the bound texture and
+ * only the layer index changes.
+ * Each visible entity is drawn at a level of detail picked from its screen size, with hysteresis: the level each
+ * entity was drawn with is kept here, by transform handle. Entities of a model are grouped by level so each level
+ * stays one instanced draw per mesh.
+ * On GL 4.3+ the sorted queue is submitted with glMultiDrawElementsIndirect: one call per run of items sharing
+ * texture array and VAO, with the material data read in the shaders from an SSBO. Older contexts draw item by item.
+ * Projection and view matrices go to a std140 uniform buffer once per frame. When drawing item by item, the
+ * material data of each run of items sharing a material is written to another uniform buffer, uploaded once per
+ * frame and bound by range, so the draw loop only sets the texture layer uniform, by location.
  */
 public class SceneRender {
+    private static final Profiler.Marker DRAW_QUEUE = Profiler.marker("drawQueue");
+    private static final Profiler.Marker FILL_QUEUE = Profiler.marker("fillQueue");
+    public static final int FRAME_DATA_BINDING = 0;
+    // std140 FrameData: mat4 projectionMatrix, mat4 viewMatrix
+    private static final int FRAME_DATA_SIZE = 2 * 16 * Float.BYTES;
+    public static final int MATERIAL_DATA_BINDING = 1;
+    // std140 MaterialData: vec4 diffuse
+    private static final int MATERIAL_DATA_SIZE = 4 * Float.BYTES;
+    private static final int INITIAL_INSTANCES = 256;
+    private static final float LOD_HYSTERESIS = 0.15f;
+    // Screen size (bounding sphere radius over viewport half height) below which level of detail i + 1 is used
+    private static final float[] LOD_SCREEN_SIZES = {0.4f, 0.2f, 0.1f};
+    private int drawOffsetLocation;
+    private int[] entityLods; // Level of detail each entity was drawn with last, by transform handle
+    private UniformBuffer frameUniforms;
+    private IndirectDrawBuffer indirectDrawBuffer;
+    private ShaderProgram indirectShaderProgram;
+    private UniformsMap indirectUniformsMap;
+    private InstanceRing instanceRing;
+    private int[] itemMaterialBlocks;
+    private float[] lodMinDistSq;
+    private UniformBuffer materialUniforms;
+    private RenderQueue renderQueue;
     private ShaderProgram shaderProgram;
+    private RenderSnapshot snapshot;
+    private int stateChanges;
+    private int textureLayerLocation;
     private UniformsMap uniformsMap;
+    private int[] visibleLods;
 
     public SceneRender(){
         // Create two ShaderModuleData instances (one for vertex and other for fragment)
@@ -18,61 +66,313 @@ public class SceneRender {
         shaderModuleDataList.add(new ShaderProgram.ShaderModuleData("src/shaders/scene.vert", GL_VERTEX_SHADER));
         shaderModuleDataList.add(new ShaderProgram.ShaderModuleData("src/shaders/scene.frag", GL_FRAGMENT_SHADER));
         shaderProgram = new ShaderProgram(shaderModuleDataList);
+
+        if (GL.getCapabilities().OpenGL43){
+            List<ShaderProgram.ShaderModuleData> indirectModuleDataList = new ArrayList<>();
+            indirectModuleDataList.add(new ShaderProgram.ShaderModuleData("src/shaders/scene_indirect.vert", GL_VERTEX_SHADER));
+            indirectModuleDataList.add(new ShaderProgram.ShaderModuleData("src/shaders/scene_indirect.frag", GL_FRAGMENT_SHADER));
+            indirectShaderProgram = new ShaderProgram(indirectModuleDataList);
+            indirectDrawBuffer = new IndirectDrawBuffer();
+        }
+        // Uniforms are looked up once both programs have been submitted, so they can compile concurrently
         createUniforms();
+        if (indirectShaderProgram != null){
+            createIndirectUniforms();
+        }
+
+        frameUniforms = new UniformBuffer(FRAME_DATA_BINDING, FRAME_DATA_SIZE);
+        materialUniforms = new UniformBuffer(MATERIAL_DATA_BINDING, 64 * UniformBuffer.getStride(MATERIAL_DATA_SIZE));
+        entityLods = new int[INITIAL_INSTANCES];
+        itemMaterialBlocks = new int[64];
+        instanceRing = new InstanceRing(INITIAL_INSTANCES);
+        renderQueue = new RenderQueue();
+        lodMinDistSq = new float[ModelLoader.MAX_LODS];
+        snapshot = new RenderSnapshot();
+        visibleLods = new int[INITIAL_INSTANCES];
     }
 
-    // Free resources (shader program)
+    // Free resources (shader programs, instance ring, indirect buffers)
     public void cleanup(){
         shaderProgram.cleanup();
+        instanceRing.cleanup();
+        frameUniforms.cleanup();
+        materialUniforms.cleanup();
+        if (indirectShaderProgram != null){
+            indirectShaderProgram.cleanup();
+            indirectDrawBuffer.cleanup();
+        }
+    }
+
+    // The sampler always reads texture unit 0, so it is set once here
+    private void createIndirectUniforms(){
+        indirectUniformsMap = new UniformsMap(indirectShaderProgram.getProgramId());
+        drawOffsetLocation = indirectUniformsMap.createUniform("drawOffset");
+        indirectShaderProgram.bind();
+        indirectUniformsMap.setUniform(indirectUniformsMap.createUniform("txtSampler"), 0);
+        indirectShaderProgram.unbind();
     }
 
     private void createUniforms(){
         uniformsMap = new UniformsMap(shaderProgram.getProgramId());
-        uniformsMap.createUniform("projectionMatrix");
-        uniformsMap.createUniform("modelMatrix");
-        uniformsMap.createUniform("viewMatrix");
-        uniformsMap.createUniform("txtSampler");
-        uniformsMap.createUniform("material.diffuse");
+        textureLayerLocation = uniformsMap.createUniform("textureLayer");
+        shaderProgram.bind();
+        uniformsMap.setUniform(uniformsMap.createUniform("txtSampler"), 0);
+        shaderProgram.unbind();
     }
 
-    // Doin the drawing to screen
-    // Iterate over meshes stored in Scene(), bind them, and draw the vertices of the VAO
-    public void render(Scene scene){
-        shaderProgram.bind();
+    // Writes the model matrix of every visible entity into the instance ring and adds one queue item per mesh
+    // and level of detail used by the visible entities of each model. Entities are grouped by level of detail so
+    // each group is a contiguous instance range
+    private void fillQueue(RenderSnapshot snapshot, TextureCache textureCache, int programId){
+        Vector3f cameraPos = snapshot.getCameraPosition();
+        // Projected size of a unit radius at unit distance, in fractions of the viewport half height
+        float projScale = snapshot.getProjMatrix().m11();
 
-        uniformsMap.setUniform("projectionMatrix", scene.getProjection().getProjMatrix());
-        uniformsMap.setUniform("viewMatrix", scene.getCamera().getViewMatrix());
-        uniformsMap.setUniform("txtSampler", 0);
+        instanceRing.beginFrame();
+        instanceRing.ensureCapacity(snapshot.getNumEntities());
+        renderQueue.clear();
+        if (visibleLods.length < snapshot.getNumEntities()){
+            visibleLods = new int[snapshot.getNumEntities() * 2];
+        }
 
-        Collection<Model> models = scene.getModelMap().values();
-        TextureCache textureCache = scene.getTextureCache();
-        for (Model model : models){
-            List<Entity> entities = model.getEntitiesList();
+        float[] matrices = snapshot.getMatrices();
+        List<Model> models = snapshot.getModels();
+        for (int m = 0; m < models.size(); m++){
+            Model model = models.get(m);
+            if (model.isReleased()){
+                continue; // Removed from the scene after the snapshot was captured
+            }
+            int start = snapshot.getModelStart(m);
+            int end = snapshot.getModelStart(m + 1);
+            int maxLod = Math.min(snapshot.getModelMaxLod(m), LOD_SCREEN_SIZES.length);
+            float radius = snapshot.getModelRadius(m);
 
-            for (Material material : model.getMaterialList()){
-                uniformsMap.setUniform("material.diffuse", material.getDiffuseColor());
-                Texture texture = textureCache.getTexture(material.getTexturePath());
-                glActiveTexture(GL_TEXTURE0);
-                texture.bind();
+            // Pick the level of detail of each visible entity from its screen size
+            Arrays.fill(lodMinDistSq, Float.MAX_VALUE);
+            for (int i = start; i < end; i++){
+                int offset = i * 16;
+                // Translation column of the model matrix
+                float dx = matrices[offset + 12] - cameraPos.x;
+                float dy = matrices[offset + 13] - cameraPos.y;
+                float dz = matrices[offset + 14] - cameraPos.z;
+                float distSq = dx * dx + dy * dy + dz * dz;
+                // Length of the first column: the entity's scale
+                float scale = (float) Math.sqrt(matrices[offset] * matrices[offset] +
+                        matrices[offset + 1] * matrices[offset + 1] + matrices[offset + 2] * matrices[offset + 2]);
+                int lod = selectLod(snapshot.getHandle(i), radius * scale, distSq, projScale, maxLod);
+                visibleLods[i] = lod;
+                lodMinDistSq[lod] = Math.min(lodMinDistSq[lod], distSq);
+            }
 
-                for (Mesh mesh : material.getMeshList()){
-                    glBindVertexArray(mesh.getVaoId());
-                    for (Entity entity : entities){
-                        uniformsMap.setUniform("modelMatrix", entity.getModelMatrix());
-                        glDrawElements(GL_TRIANGLES, mesh.getNumVertices(), GL_UNSIGNED_INT, 0);
+            for (int lod = 0; lod <= maxLod; lod++){
+                int baseInstance = 0;
+                int count = 0;
+                for (int i = start; i < end; i++){
+                    if (visibleLods[i] != lod){
+                        continue;
                     }
+                    int instance = instanceRing.write(matrices, i * 16);
+                    if (count == 0){
+                        baseInstance = instance;
+                    }
+                    count++;
+                }
+                if (count == 0){
+                    continue;
+                }
+
+                float depth = (float) Math.sqrt(lodMinDistSq[lod]) / Projection.Z_FAR;
+                Material material = null;
+                Texture texture = null;
+                for (int d = snapshot.getDrawStart(m); d < snapshot.getDrawStart(m + 1); d++){
+                    if (snapshot.getDrawMaterial(d) != material){
+                        material = snapshot.getDrawMaterial(d);
+                        texture = textureCache.getTexture(snapshot.getDrawTexturePath(d));
+                    }
+                    Mesh mesh = snapshot.getDrawMesh(d);
+                    renderQueue.add(programId, texture, material, mesh, Math.min(lod, mesh.getLodCount() - 1),
+                            baseInstance, count, depth);
                 }
             }
         }
+        instanceRing.flush();
+    }
 
+    // Level of detail for the entity of a transform handle, whose bounding sphere has the given radius, at distSq
+    // from the camera. Switching needs the screen size to pass the threshold by LOD_HYSTERESIS, so entities near a
+    // threshold do not pop back and forth
+    private int selectLod(int handle, float radius, float distSq, float projScale, int maxLod){
+        if (handle >= entityLods.length){
+            entityLods = Arrays.copyOf(entityLods, Math.max(handle + 1, entityLods.length * 2));
+        }
+        float dist = (float) Math.sqrt(distSq);
+        float size = dist > radius ? radius * projScale / dist : Float.MAX_VALUE;
+        int lod = Math.min(entityLods[handle], maxLod);
+        while (lod > 0 && size > LOD_SCREEN_SIZES[lod - 1] * (1 + LOD_HYSTERESIS)){
+            lod--;
+        }
+        while (lod < maxLod && size < LOD_SCREEN_SIZES[lod] * (1 - LOD_HYSTERESIS)){
+            lod++;
+        }
+        entityLods[handle] = lod;
+        return lod;
+    }
 
-        glBindVertexArray(0);
+    // Issues one instanced draw per queue item
+    private void drawQueue(){
+        int materialStride = writeMaterialBlocks();
+        int currentBlock = -1;
+        int currentLayer = -1;
+        int currentTexture = -1;
+        int currentVao = -1;
+        for (int i = 0; i < renderQueue.size(); i++){
+            Texture texture = renderQueue.getTexture(i);
+            if (texture.getTextureId() != currentTexture){
+                texture.bind();
+                currentTexture = texture.getTextureId();
+                stateChanges++;
+            }
+            if (texture.getLayer() != currentLayer){
+                uniformsMap.setUniform(textureLayerLocation, texture.getLayer());
+                currentLayer = texture.getLayer();
+                stateChanges++;
+            }
+            if (itemMaterialBlocks[i] != currentBlock){
+                currentBlock = itemMaterialBlocks[i];
+                materialUniforms.bindRange((long) currentBlock * materialStride, MATERIAL_DATA_SIZE);
+                stateChanges++;
+            }
+            Mesh mesh = renderQueue.getMesh(i);
+            if (mesh.getVaoId() != currentVao){
+                glBindVertexArray(mesh.getVaoId());
+                mesh.setInstanceBuffer(instanceRing);
+                currentVao = mesh.getVaoId();
+                stateChanges++;
+            }
+            int lod = renderQueue.getLod(i);
+            glDrawElementsInstancedBaseVertexBaseInstance(GL_TRIANGLES, mesh.getNumIndices(lod), GL_UNSIGNED_INT,
+                    (long) mesh.getFirstIndex(lod) * Integer.BYTES, renderQueue.getInstanceCount(i),
+                    mesh.getBaseVertex(), renderQueue.getBaseInstance(i));
+            Profiler.count(Profiler.Counter.TRIANGLES, mesh.getNumIndices(lod) / 3 * renderQueue.getInstanceCount(i));
+        }
+        Profiler.count(Profiler.Counter.DRAW_CALLS, renderQueue.size());
+    }
 
-        // Unbind VAO and shader program to restore the state
-        shaderProgram.unbind();
+    // Writes the material data of each run of sorted queue items sharing a material as a block of the material
+    // uniform buffer, records the block of every item and uploads them. Returns the stride between blocks
+    private int writeMaterialBlocks(){
+        int stride = UniformBuffer.getStride(MATERIAL_DATA_SIZE);
+        if (itemMaterialBlocks.length < renderQueue.size()){
+            itemMaterialBlocks = new int[renderQueue.size() * 2];
+        }
+        ByteBuffer data = materialUniforms.begin(renderQueue.size() * stride);
+        Material currentMaterial = null;
+        int block = -1;
+        for (int i = 0; i < renderQueue.size(); i++){
+            Material material = renderQueue.getMaterial(i);
+            if (material != currentMaterial){
+                currentMaterial = material;
+                block++;
+                Vector4f diffuse = material.getDiffuseColor();
+                int offset = block * stride;
+                data.putFloat(offset, diffuse.x).putFloat(offset + 4, diffuse.y).putFloat(offset + 8, diffuse.z)
+                        .putFloat(offset + 12, diffuse.w);
+            }
+            itemMaterialBlocks[i] = block;
+        }
+        materialUniforms.upload((block + 1) * stride);
+        return stride;
+    }
+
+    // Writes a command per queue item, then issues one multi draw per run of items sharing texture array and VAO
+    private void drawQueueIndirect(){
+        indirectDrawBuffer.clear();
+        for (int i = 0; i < renderQueue.size(); i++){
+            Mesh mesh = renderQueue.getMesh(i);
+            int lod = renderQueue.getLod(i);
+            indirectDrawBuffer.addDraw(mesh, lod, renderQueue.getInstanceCount(i), renderQueue.getBaseInstance(i),
+                    renderQueue.getMaterial(i), renderQueue.getTexture(i).getLayer());
+            Profiler.count(Profiler.Counter.TRIANGLES, mesh.getNumIndices(lod) / 3 * renderQueue.getInstanceCount(i));
+        }
+        indirectDrawBuffer.upload();
+        indirectDrawBuffer.bind();
+
+        int runStart = 0;
+        while (runStart < renderQueue.size()){
+            Texture texture = renderQueue.getTexture(runStart);
+            Mesh mesh = renderQueue.getMesh(runStart);
+            int runEnd = runStart + 1;
+            while (runEnd < renderQueue.size() && renderQueue.getTexture(runEnd).getTextureId() == texture.getTextureId() &&
+                    renderQueue.getMesh(runEnd).getVaoId() == mesh.getVaoId()){
+                runEnd++;
+            }
+
+            texture.bind();
+            glBindVertexArray(mesh.getVaoId());
+            mesh.setInstanceBuffer(instanceRing);
+            indirectUniformsMap.setUniform(drawOffsetLocation, runStart);
+            stateChanges += 3;
+            glMultiDrawElementsIndirect(GL_TRIANGLES, GL_UNSIGNED_INT, (long) runStart * IndirectDrawBuffer.COMMAND_SIZE,
+                    runEnd - runStart, 0);
+            Profiler.count(Profiler.Counter.DRAW_CALLS, 1);
+            runStart = runEnd;
+        }
+        indirectDrawBuffer.unbind();
+    }
+
+    // Number of program, texture, VAO and material uniform changes issued by the last render call
+    public int getStateChanges(){
+        return stateChanges;
+    }
+
+    // Doin the drawing to screen
+    // Cull, fill and sort the render queue, then submit it skipping redundant state changes
+    public void render(Scene scene){
+        render(scene, 1.0f);
+    }
 
-        
+    // alpha: fraction of the current update step elapsed, used to interpolate entity transforms
+    public void render(Scene scene, float alpha){
+        snapshot.capture(scene, alpha);
+        render(scene, snapshot);
     }
 
-    
+    // Renders a snapshot captured from the scene, possibly on another thread. Only the scene's texture cache
+    // is used, which belongs to the GL thread
+    public void render(Scene scene, RenderSnapshot snapshot){
+        boolean indirect = indirectShaderProgram != null;
+        ShaderProgram program = indirect ? indirectShaderProgram : shaderProgram;
+        program.bind();
+
+        ByteBuffer frameData = frameUniforms.begin(FRAME_DATA_SIZE);
+        snapshot.getProjMatrix().get(0, frameData);
+        snapshot.getViewMatrix().get(16 * Float.BYTES, frameData);
+        frameUniforms.upload(FRAME_DATA_SIZE);
+        frameUniforms.bind();
+
+        TextureCache textureCache = scene.getTextureCache();
+        textureCache.beginFrame();
+        FILL_QUEUE.begin();
+        fillQueue(snapshot, textureCache, program.getProgramId());
+        renderQueue.sort();
+        FILL_QUEUE.end();
+
+        glActiveTexture(GL_TEXTURE0);
+        stateChanges = 1; // Program bind above
+        DRAW_QUEUE.begin();
+        if (indirect){
+            drawQueueIndirect();
+        }
+        else{
+            drawQueue();
+        }
+        DRAW_QUEUE.end();
+        Profiler.count(Profiler.Counter.STATE_CHANGES, stateChanges);
+
+        glBindVertexArray(0);
+        instanceRing.endFrame();
+
+        // Unbind VAO and shader program to restore the state
+        program.unbind();
+    }
 }
\ No newline at end of file
@@ -1,45 +1,106 @@
 package main.lwjglb.engine.graph;
 
+import org.lwjgl.opengl.GL;
 import org.lwjgl.opengl.GL30;
+import org.lwjgl.opengl.GLCapabilities;
+import org.lwjgl.system.MemoryUtil;
 import main.lwjglb.engine.Utils; // err bc not made yet
-
+import org.tinylog.Logger;
+
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
 import java.util.*;
 
-import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL41.*;
+import static org.lwjgl.opengl.KHRParallelShaderCompile.*;
 /**
  * Receives src of the different shader modules (vertex, fragment) and compiles
  * then links them together to generate a shader program.
  * At the end, the shader program will load in the GPU and can be used by referencing
- * the program identifier. 
+ * the program identifier.
+ * Linked programs are cached in CACHE_DIR with glGetProgramBinary, in a file named after a hash of the module
+ * sources and the GL vendor / renderer / version strings, and loaded back with glProgramBinary on later runs.
+ * A binary the driver rejects (e.g. after a driver update keeping the same strings) is deleted and the program
+ * compiled again.
+ * Compiling and linking only start the work: errors are checked, and the binary cached, the first time the
+ * program is used (bind, getProgramId, validate). Creating all programs before using any lets drivers with
+ * GL_KHR_parallel_shader_compile build them concurrently; isReady tells whether using one would block.
  */
 public class ShaderProgram {
-
+    public static final String CACHE_DIR = "cache/shaders";
+    private static final int MAGIC = 0x4A534842; // JSHB
+    private static boolean binaryCache;
+    private static String driverId;
+    private static boolean parallelCompile;
+    private final Path cacheFile;
+    private boolean linked;
     private final int programId;
+    private List<Integer> shaderModules;
     // Receives all ShaderModuleData instances which define the shader module type (vertex, frag, etc)
     // and the path to the source file which contains shader module code.
     public ShaderProgram(List<ShaderModuleData> shaderModuleDataList) {
+        if (driverId == null) {
+            initDriver();
+        }
         programId = glCreateProgram();
         if (programId == 0) {
             throw new RuntimeException("Could not create Shader");
         }
 
-        List<Integer> shaderModules = new ArrayList<>();
-        shaderModuleDataList.forEach(s -> shaderModules.add(createShader(Utils.readFile(s.shaderFile), s.shaderType)));
+        List<String> sources = new ArrayList<>();
+        shaderModuleDataList.forEach(s -> sources.add(Utils.readFile(s.shaderFile)));
+        cacheFile = Paths.get(CACHE_DIR, cacheKey(shaderModuleDataList, sources) + ".bin");
+        if (binaryCache && loadBinary()) {
+            linked = true;
+            return;
+        }
 
-        link(shaderModules);
+        shaderModules = new ArrayList<>();
+        for (int i = 0; i < shaderModuleDataList.size(); i++) {
+            shaderModules.add(createShader(sources.get(i), shaderModuleDataList.get(i).shaderType));
+        }
+        if (binaryCache) {
+            glProgramParameteri(programId, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE);
+        }
+        glLinkProgram(programId);
     }
 
     public void bind() {
+        finishLink();
         glUseProgram(programId);
     }
 
+    // Hex SHA-256 of the driver strings and, per module, its type and source
+    private static String cacheKey(List<ShaderModuleData> shaderModuleDataList, List<String> sources) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(driverId.getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < sources.size(); i++) {
+                digest.update(("\n" + shaderModuleDataList.get(i).shaderType + "\n").getBytes(StandardCharsets.UTF_8));
+                digest.update(sources.get(i).getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        }
+        catch (NoSuchAlgorithmException excp) {
+            throw new RuntimeException("Could not hash shader sources", excp);
+        }
+    }
+
     public void cleanup() {
         unbind();
         if (programId != 0) {
             glDeleteProgram(programId);
         }
+        if (shaderModules != null) {
+            shaderModules.forEach(GL30::glDeleteShader);
+        }
     }
 
+    // Starts compiling the module; its status is checked by finishLink
     protected int createShader(String shaderCode, int shaderType) {
         int shaderId = glCreateShader(shaderType);
         if (shaderId == 0) {
@@ -48,28 +109,130 @@ public class ShaderProgram {
 
         glShaderSource(shaderId, shaderCode);
         glCompileShader(shaderId);
-
-        if (glGetShaderi(shaderId, GL_COMPILE_STATUS) == 0) {
-            throw new RuntimeException("Error compiling Shader code: " + glGetShaderInfoLog(shaderId, 1024));
-        }
-
         glAttachShader(programId, shaderId);
 
         return shaderId;
     }
 
-    public int getProgramId() {
-        return programId;
-    }
-
-    private void link(List<Integer> shaderModules) {
-        glLinkProgram(programId);
+    // Waits for the link started in the constructor, if still running, and checks it. On success the modules
+    // are released and the binary cached
+    private void finishLink() {
+        if (linked) {
+            return;
+        }
         if (glGetProgrami(programId, GL_LINK_STATUS) == 0) {
+            // Report the module that failed to compile, if any, rather than the resulting link error
+            for (int shaderId : shaderModules) {
+                if (glGetShaderi(shaderId, GL_COMPILE_STATUS) == 0) {
+                    throw new RuntimeException("Error compiling Shader code: " + glGetShaderInfoLog(shaderId, 1024));
+                }
+            }
             throw new RuntimeException("Error linking Shader code: " + glGetProgramInfoLog(programId, 1024));
         }
 
         shaderModules.forEach(s -> glDetachShader(programId, s));
         shaderModules.forEach(GL30::glDeleteShader);
+        shaderModules = null;
+        linked = true;
+        if (binaryCache) {
+            storeBinary();
+        }
+    }
+
+    public int getProgramId() {
+        finishLink();
+        return programId;
+    }
+
+    // Reads the capabilities once per context: binaries need GL 4.1 / ARB_get_program_binary and at least one
+    // binary format, and parallel compilation is given as many driver threads as it wants
+    private static void initDriver() {
+        GLCapabilities caps = GL.getCapabilities();
+        binaryCache = (caps.OpenGL41 || caps.GL_ARB_get_program_binary) &&
+                glGetInteger(GL_NUM_PROGRAM_BINARY_FORMATS) > 0;
+        parallelCompile = caps.GL_KHR_parallel_shader_compile;
+        if (parallelCompile) {
+            glMaxShaderCompilerThreadsKHR(0xFFFFFFFF);
+        }
+        driverId = glGetString(GL_VENDOR) + "\n" + glGetString(GL_RENDERER) + "\n" + glGetString(GL_VERSION);
+        Logger.debug("Shader binary cache [{}], parallel compile [{}]", binaryCache, parallelCompile);
+    }
+
+    // Whether the program can be used without waiting for the driver to finish compiling and linking it
+    public boolean isReady() {
+        return linked || !parallelCompile || glGetProgrami(programId, GL_COMPLETION_STATUS_KHR) == GL_TRUE;
+    }
+
+    // Loads the cached binary, if any. Returns false, deleting the file, if the driver rejects it
+    private boolean loadBinary() {
+        if (!Files.exists(cacheFile)) {
+            return false;
+        }
+        ByteBuffer binary = null;
+        try {
+            byte[] bytes = Files.readAllBytes(cacheFile);
+            ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+            if (bytes.length > 2 * Integer.BYTES && buf.getInt() == MAGIC) {
+                int format = buf.getInt();
+                binary = MemoryUtil.memAlloc(buf.remaining()).put(buf).flip();
+                glProgramBinary(programId, format, binary);
+                if (glGetProgrami(programId, GL_LINK_STATUS) == GL_TRUE) {
+                    Logger.debug("Loaded shader program from cache [{}]", cacheFile);
+                    return true;
+                }
+            }
+            Logger.info("Discarding stale shader cache [{}]", cacheFile);
+            Files.deleteIfExists(cacheFile);
+        }
+        catch (IOException excp) {
+            Logger.warn(excp, "Ignoring unreadable shader cache [{}]", cacheFile);
+        }
+        finally {
+            MemoryUtil.memFree(binary);
+        }
+        return false;
+    }
+
+    // Writes the linked program's binary to the cache. Failures are logged and otherwise ignored
+    private void storeBinary() {
+        int length = glGetProgrami(programId, GL_PROGRAM_BINARY_LENGTH);
+        if (length == 0) {
+            return;
+        }
+        int[] written = new int[1];
+        int[] format = new int[1];
+        ByteBuffer binary = MemoryUtil.memAlloc(length);
+        try {
+            glGetProgramBinary(programId, written, format, binary);
+            binary.limit(written[0]);
+            ByteBuffer header = ByteBuffer.allocate(2 * Integer.BYTES).order(ByteOrder.nativeOrder());
+            header.putInt(MAGIC).putInt(format[0]).flip();
+
+            Files.createDirectories(cacheFile.getParent());
+            // Write to a temp file and move it in place, so another instance never loads a partial file
+            Path tmpPath = Files.createTempFile(cacheFile.getParent(), cacheFile.getFileName().toString(), ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.WRITE)) {
+                    while (header.hasRemaining()) {
+                        channel.write(header);
+                    }
+                    while (binary.hasRemaining()) {
+                        channel.write(binary);
+                    }
+                }
+                Files.move(tmpPath, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException excp) {
+                Files.deleteIfExists(tmpPath);
+                throw excp;
+            }
+        }
+        catch (IOException excp) {
+            Logger.warn(excp, "Could not write shader cache [{}]", cacheFile);
+        }
+        finally {
+            MemoryUtil.memFree(binary);
+        }
     }
 
     public void unbind() {
@@ -80,6 +243,7 @@ public class ShaderProgram {
     // means the validation may fail in some cases even if the shader is correct due to the current
     // state not being complete enough to run.
     public void validate() {
+        finishLink();
         glValidateProgram(programId);
         if (glGetProgrami(programId, GL_VALIDATE_STATUS) == 0) {
             throw new RuntimeException("Error validating Shader code: " + glGetProgramInfoLog(programId, 1024));
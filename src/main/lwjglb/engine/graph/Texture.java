@@ -1,5 +1,6 @@
 package main.lwjglb.engine.graph;
 
+import main.lwjglb.engine.Profiler;
 import org.lwjgl.system.MemoryStack;
 
 import java.nio.*;
@@ -7,10 +8,23 @@ import java.nio.*;
 import static org.lwjgl.opengl.GL30.*;
 import static org.lwjgl.stb.STBImage.*;
 
+/**
+ * Either a standalone GL_TEXTURE_2D, or a layer of a TextureArray (as created by TextureCache). In the latter
+ * case the array owns the GL texture, and getTextureId returns the array's.
+ */
 public class Texture {
+    private TextureArray array;
+    private int layer;
     private int textureId;
     private String texturePath;
 
+    // Layer of a texture array
+    Texture(String texturePath, TextureArray array, int layer){
+        this.texturePath = texturePath;
+        this.array = array;
+        this.layer = layer;
+    }
+
     // IntBuffer return image size and number of channels
     public Texture(int width, int height, ByteBuffer buf){
         this.texturePath ="";
@@ -39,11 +53,19 @@ public class Texture {
     }
 
     public void bind(){
-        glBindTexture(GL_TEXTURE_2D, textureId);
+        Profiler.count(Profiler.Counter.TEXTURE_BINDS, 1);
+        if (array != null){
+            array.bind();
+        }
+        else{
+            glBindTexture(GL_TEXTURE_2D, textureId);
+        }
     }
 
     public void cleanup(){
-        glDeleteTextures(textureId);
+        if (array == null){
+            glDeleteTextures(textureId);
+        }
     }
 
     // Load texture in GPU
@@ -59,6 +81,19 @@ public class Texture {
         glGenerateMipmap(GL_TEXTURE_2D);
     }
 
+    // Texture array this texture is a layer of, null for standalone textures
+    public TextureArray getArray(){
+        return array;
+    }
+
+    public int getLayer(){
+        return layer;
+    }
+
+    public int getTextureId(){
+        return array != null ? array.getTextureId() : textureId;
+    }
+
     public String getTexturePath(){
         return texturePath;
     }
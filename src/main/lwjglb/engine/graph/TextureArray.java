@@ -0,0 +1,160 @@
+package main.lwjglb.engine.graph;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.lwjgl.opengl.GL43.*;
+/**
+ * GL_TEXTURE_2D_ARRAY holding images of one size and format, one per layer: RGBA8, with the mip chain generated
+ * when the array is next bound, or a block compressed format whose images bring their own mip levels.
+ * glGenerateMipmap works on every layer, so it runs once for all the RGBA8 layers added since the last bind rather
+ * than once per layer. Textures sharing an array can be
+ * drawn without rebinding, selecting their layer in the shader.
+ * Storage is immutable, so when it runs out of layers a bigger array is created and the existing layers
+ * (all mip levels) are copied on the GPU. Layers released with freeLayer are reused by the next images added.
+ */
+public class TextureArray {
+    private static final int INITIAL_LAYERS = 4;
+    private int capacity;
+    private final int format;
+    private final Deque<Integer> freeLayers;
+    private final int height;
+    private final int levels;
+    private boolean mipmapsPending;
+    private int numLayers;
+    private int textureId;
+    private final int width;
+
+    public TextureArray(int width, int height){
+        this(width, height, GL_RGBA8, 1 + (int) Math.floor(Math.log(Math.max(width, height)) / Math.log(2)));
+    }
+
+    // format: GL_RGBA8 or a compressed internal format known to DdsFile, levels: # of mip levels of the images
+    public TextureArray(int width, int height, int format, int levels){
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.levels = levels;
+        freeLayers = new ArrayDeque<>();
+        textureId = createStorage(INITIAL_LAYERS);
+        capacity = INITIAL_LAYERS;
+    }
+
+    // Uploads an image of this array's size and format and returns its layer. RGBA8 images hold level 0 only,
+    // compressed ones all the levels back to back
+    public int addLayer(ByteBuffer buf){
+        int layer;
+        if (!freeLayers.isEmpty()){
+            layer = freeLayers.pop();
+        }
+        else{
+            if (numLayers == capacity){
+                grow();
+            }
+            layer = numLayers++;
+        }
+        glBindTexture(GL_TEXTURE_2D_ARRAY, textureId);
+        if (format == GL_RGBA8){
+            glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+            glTexSubImage3D(GL_TEXTURE_2D_ARRAY, 0, 0, 0, layer, width, height, 1, GL_RGBA, GL_UNSIGNED_BYTE, buf);
+            mipmapsPending = levels > 1;
+        }
+        else{
+            int offset = buf.position();
+            for (int level = 0; level < levels; level++){
+                int levelWidth = Math.max(1, width >> level);
+                int levelHeight = Math.max(1, height >> level);
+                int size = DdsFile.levelSize(format, levelWidth, levelHeight);
+                glCompressedTexSubImage3D(GL_TEXTURE_2D_ARRAY, level, 0, 0, layer, levelWidth, levelHeight, 1, format,
+                        buf.slice(offset, size));
+                offset += size;
+            }
+        }
+        return layer;
+    }
+
+    // Also generates the mip levels of the layers added since the last bind, if any
+    public void bind(){
+        glBindTexture(GL_TEXTURE_2D_ARRAY, textureId);
+        if (mipmapsPending){
+            glGenerateMipmap(GL_TEXTURE_2D_ARRAY);
+            mipmapsPending = false;
+        }
+    }
+
+    public void cleanup(){
+        glDeleteTextures(textureId);
+    }
+
+    private int createStorage(int layers){
+        int id = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D_ARRAY, id);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glTexStorage3D(GL_TEXTURE_2D_ARRAY, levels, format, width, height, layers);
+        return id;
+    }
+
+    // Makes a layer available to addLayer. Its contents stay in place until overwritten
+    public void freeLayer(int layer){
+        freeLayers.push(layer);
+    }
+
+    public int getFormat(){
+        return format;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    public int getLevels(){
+        return levels;
+    }
+
+    // Bytes of GPU memory of one layer, all mip levels included
+    public long getLayerSize(){
+        if (format != GL_RGBA8){
+            return DdsFile.size(format, width, height, levels);
+        }
+        long size = 0;
+        for (int level = 0; level < levels; level++){
+            size += (long) Math.max(1, width >> level) * Math.max(1, height >> level) * 4;
+        }
+        return size;
+    }
+
+    public int getNumLayers(){
+        return numLayers;
+    }
+
+    // Layers holding an image, i.e. not freed
+    public int getNumUsedLayers(){
+        return numLayers - freeLayers.size();
+    }
+
+    public int getTextureId(){
+        return textureId;
+    }
+
+    public int getWidth(){
+        return width;
+    }
+
+    private void grow(){
+        int maxLayers = glGetInteger(GL_MAX_ARRAY_TEXTURE_LAYERS);
+        if (capacity >= maxLayers){
+            throw new RuntimeException("Texture array [" + width + "x" + height + "] is full [" + maxLayers + " layers]");
+        }
+        int newCapacity = Math.min(capacity * 2, maxLayers);
+        int newTextureId = createStorage(newCapacity);
+        for (int level = 0; level < levels; level++){
+            glCopyImageSubData(textureId, GL_TEXTURE_2D_ARRAY, level, 0, 0, 0,
+                    newTextureId, GL_TEXTURE_2D_ARRAY, level, 0, 0, 0,
+                    Math.max(1, width >> level), Math.max(1, height >> level), numLayers);
+        }
+        glDeleteTextures(textureId);
+        textureId = newTextureId;
+        capacity = newCapacity;
+    }
+}
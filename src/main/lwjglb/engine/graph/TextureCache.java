@@ -1,35 +1,348 @@
 package main.lwjglb.engine.graph;
 
+import org.lwjgl.opengl.GL;
+import org.lwjgl.system.MemoryStack;
+import org.lwjgl.system.MemoryUtil;
+import org.tinylog.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.*;
 import java.util.*;
+import java.util.concurrent.*;
+
+import static org.lwjgl.opengl.GL11.GL_RGBA8;
+import static org.lwjgl.stb.STBImage.*;
 /**
- * Store loaded textures in a map and return a default texture in case texture path is null
+ * Store loaded textures in a map and return a default texture in case texture path is null.
+ * Textures are packed as layers into one GL_TEXTURE_2D_ARRAY per image size and format, so materials whose textures
+ * share them can be drawn without rebinding textures; the shaders pick the layer instead.
+ * Images are block compressed: DDS files are used as they are, and other images are transcoded on first use to a
+ * DDS file under TextureTranscoder.CACHE_DIR, which later runs load instead, skipping decode and mip generation.
+ * Transcoding only happens off the GL thread: decode() does it on the caller's thread (AsyncModelLoader's workers),
+ * while createTexture uploads the image uncompressed and leaves the transcode to a background thread, for the next
+ * run. Without GL_EXT_texture_compression_s3tc, images other than DDS files are always uploaded uncompressed.
+ *
+ * Residency: the layers of resident textures are kept under a memory budget. Scene acquires / releases a
+ * reference per material using a texture, and getTexture stamps the texture with the current frame (see beginFrame).
+ * Only getTexture, called when a texture is drawn, moves it to the most recently used end; other lookups go through
+ * a separate unordered map and leave the order alone.
+ * When the budget is exceeded, beginFrame evicts textures in least recently used order: unreferenced ones first,
+ * then referenced ones not drawn in the last EVICT_MIN_IDLE_FRAMES frames. Their layers are reused by later
+ * textures, and arrays left empty are deleted. Drawing an evicted texture shows the DEFAULT_TEXTURE and queues
+ * a reload, picked up with pollReload (AsyncModelLoader does so every frame).
  */
 public class TextureCache {
+    public static final long DEFAULT_BUDGET_BYTES = 512L * 1024 * 1024;
     public static final String DEFAULT_TEXTURE = "resources/models/default/default_texture.png";
-    private Map<String, Texture> textureMap; 
+    // Frames a referenced texture must go undrawn before it can be evicted; more than the frames in flight
+    private static final int EVICT_MIN_IDLE_FRAMES = 60;
+    private static volatile boolean compressionSupported; // Set from the GL capabilities when a cache is created
+    private Map<ArrayKey, TextureArray> arrayMap;
+    private long budgetBytes;
+    private Texture defaultTexture;
+    private long evictions;
+    private long frame;
+    private long hits;
+    private Map<String, Entry> lruMap; // Same entries as textureMap, access ordered: starts at the least recently used
+    private long misses;
+    private Deque<String> reloadQueue;
+    private long residentBytes;
+    private Map<String, Entry> textureMap;
+    private ExecutorService transcoder;
 
     public TextureCache(){
+        this(DEFAULT_BUDGET_BYTES);
+    }
+
+    public TextureCache(long budgetBytes){
+        this.budgetBytes = budgetBytes;
+        arrayMap = new HashMap<>();
+        lruMap = new LinkedHashMap<>(16, 0.75f, true);
         textureMap = new HashMap<>();
-        textureMap.put(DEFAULT_TEXTURE, new Texture(DEFAULT_TEXTURE));
+        reloadQueue = new ArrayDeque<>();
+        compressionSupported = GL.getCapabilities().GL_EXT_texture_compression_s3tc;
+        if (!compressionSupported){
+            Logger.info("S3TC texture compression not supported, textures are uploaded uncompressed");
+        }
+        transcoder = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "texture-transcoder");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        defaultTexture = createTexture(DEFAULT_TEXTURE);
+    }
+
+    // Adds a reference to a texture, e.g. from a material of a model added to the scene. Referenced textures are
+    // evicted only after the unreferenced ones
+    public void acquire(String texturePath){
+        if (texturePath != null){
+            getOrAddEntry(texturePath).refCount++;
+        }
+    }
+
+    // Starts a frame, evicting textures if the budget is exceeded. Call before the getTexture calls of the frame
+    public void beginFrame(){
+        frame++;
+        if (residentBytes > budgetBytes){
+            evict(false);
+        }
+        if (residentBytes > budgetBytes){
+            evict(true);
+        }
     }
 
     public void cleanup(){
-        textureMap.values().stream().forEach(Texture::cleanup);
+        // Drops queued transcodes, which are done on a later run. Not a daemon thread, so a running one either
+        // completes or, interrupted while writing, deletes its temp file (see DdsFile.write) before the app exits
+        transcoder.shutdownNow();
+        arrayMap.values().stream().forEach(TextureArray::cleanup);
+        arrayMap.clear();
+        lruMap.clear();
+        textureMap.clear();
+        residentBytes = 0;
     }
 
+    // Returns the texture, loading it synchronously if it is not resident. An image with no transcoded DDS yet is
+    // uploaded uncompressed, and transcoded on a background thread for the next run
     public Texture createTexture(String texturePath){
-        return textureMap.computeIfAbsent(texturePath, Texture::new);
+        Entry entry = textureMap.get(texturePath);
+        if (entry != null && entry.texture != null){
+            return entry.texture;
+        }
+        ImageData imageData = decodeCompressed(texturePath);
+        if (imageData == null){
+            imageData = decodeRgba(texturePath);
+            if (compressionSupported){
+                transcoder.execute(() -> {
+                    try{
+                        decode(texturePath).free();
+                    }
+                    catch (RuntimeException excp){
+                        Logger.warn(excp, "Could not transcode texture [{}]", texturePath);
+                    }
+                });
+            }
+        }
+        return addTexture(texturePath, imageData);
+    }
+
+    // Evicts least recently used textures until the budget is met. referenced: whether textures referenced by
+    // materials may go too, if not drawn for a while
+    private void evict(boolean referenced){
+        Iterator<Map.Entry<String, Entry>> iterator = lruMap.entrySet().iterator();
+        while (iterator.hasNext() && residentBytes > budgetBytes){
+            Map.Entry<String, Entry> mapEntry = iterator.next();
+            Entry entry = mapEntry.getValue();
+            if (entry.texture == null || entry.texture == defaultTexture ||
+                    (entry.refCount > 0 && (!referenced || frame - entry.lastUsedFrame < EVICT_MIN_IDLE_FRAMES))){
+                continue;
+            }
+            TextureArray array = entry.texture.getArray();
+            array.freeLayer(entry.texture.getLayer());
+            residentBytes -= array.getLayerSize();
+            entry.texture = null;
+            entry.evicted = true;
+            evictions++;
+            if (array.getNumUsedLayers() == 0){
+                arrayMap.remove(new ArrayKey(array.getWidth(), array.getHeight(), array.getFormat(), array.getLevels()));
+                array.cleanup();
+            }
+            if (entry.refCount == 0){
+                // Nothing will ask to reload it
+                iterator.remove();
+                textureMap.remove(mapEntry.getKey());
+            }
+        }
     }
 
+    public Collection<TextureArray> getArrays(){
+        return arrayMap.values();
+    }
+
+    public long getBudgetBytes(){
+        return budgetBytes;
+    }
+
+    public void setBudgetBytes(long budgetBytes){
+        this.budgetBytes = budgetBytes;
+    }
+
+    public long getEvictions(){
+        return evictions;
+    }
+
+    // getTexture calls that found the texture resident
+    public long getHits(){
+        return hits;
+    }
+
+    // getTexture calls that returned the DEFAULT_TEXTURE for a texture not (or not yet) resident
+    public long getMisses(){
+        return misses;
+    }
+
+    // Bytes of the texture array layers holding resident textures
+    public long getResidentBytes(){
+        return residentBytes;
+    }
+
+    // Entry of the texture path, added at the most recently used end if missing
+    private Entry getOrAddEntry(String texturePath){
+        Entry entry = textureMap.get(texturePath);
+        if (entry == null){
+            entry = new Entry();
+            textureMap.put(texturePath, entry);
+            lruMap.put(texturePath, entry);
+        }
+        return entry;
+    }
+
+    // Returns the texture, stamped as used in the current frame, or the DEFAULT_TEXTURE if it is not resident.
+    // Call when the texture is drawn: it becomes the most recently used. An evicted texture is queued for reload
     public Texture getTexture(String texturePath){
-        Texture texture = null;
-        if (texturePath != null){
-            texture = textureMap.get(texturePath);
+        Entry entry = texturePath != null ? lruMap.get(texturePath) : null;
+        if (entry == null){
+            return defaultTexture;
         }
-        if (texture == null){
-            texture = textureMap.get(DEFAULT_TEXTURE);
+        entry.lastUsedFrame = frame;
+        if (entry.texture != null){
+            hits++;
+            return entry.texture;
+        }
+        misses++;
+        if (entry.evicted){
+            entry.evicted = false; // Queued once; if the reload fails it keeps showing the default texture
+            reloadQueue.add(texturePath);
+        }
+        return defaultTexture;
+    }
+
+    // Adds an image decoded with decode() as a layer of the array for its size. Frees the image data.
+    // Must be called from the thread owning the GL context
+    public Texture addTexture(String texturePath, ImageData imageData){
+        Entry entry = getOrAddEntry(texturePath);
+        if (entry.texture == null){
+            ArrayKey key = new ArrayKey(imageData.width(), imageData.height(), imageData.format(), imageData.levels());
+            TextureArray array = arrayMap.computeIfAbsent(key,
+                    k -> new TextureArray(k.width(), k.height(), k.format(), k.levels()));
+            int layer = array.addLayer(imageData.buf());
+            entry.texture = new Texture(texturePath, array, layer);
+            entry.evicted = false;
+            entry.lastUsedFrame = frame;
+            residentBytes += array.getLayerSize();
+        }
+        imageData.free();
+        return entry.texture;
+    }
+
+    // Whether the texture is resident
+    public boolean contains(String texturePath){
+        Entry entry = textureMap.get(texturePath);
+        return entry != null && entry.texture != null;
+    }
+
+    // Next evicted texture that was drawn again and needs to be reloaded, or null
+    public String pollReload(){
+        return reloadQueue.poll();
+    }
+
+    // Drops a reference added with acquire
+    public void release(String texturePath){
+        Entry entry = texturePath != null ? textureMap.get(texturePath) : null;
+        if (entry != null && entry.refCount > 0){
+            entry.refCount--;
+        }
+    }
+
+    // Loads an image file, compressed if possible: DDS files directly, other images from their transcoded DDS in the
+    // cache, which is written first if missing or older than the image. Does not touch GL, so it can run on any
+    // thread; transcoding is slow, so it should not be the GL thread
+    public static ImageData decode(String texturePath){
+        ImageData imageData = decodeCompressed(texturePath);
+        if (imageData != null){
+            return imageData;
+        }
+        imageData = decodeRgba(texturePath);
+        if (!compressionSupported){
+            return imageData;
+        }
+        String compressedPath = TextureTranscoder.compressedPath(texturePath);
+        ImageData compressed;
+        try{
+            compressed = TextureTranscoder.transcode(imageData);
+        }
+        finally{
+            imageData.free();
+        }
+        try{
+            DdsFile.write(compressedPath, compressed);
+        }
+        catch (IOException excp){
+            Logger.warn(excp, "Could not write transcoded texture [{}]", compressedPath);
+        }
+        return compressed;
+    }
+
+    // Loads a DDS file, or the transcoded DDS of an image if it is up to date and compression is supported.
+    // Returns null if the image has to be decoded and transcoded
+    private static ImageData decodeCompressed(String texturePath){
+        if (DdsFile.isDds(texturePath)){
+            return DdsFile.read(texturePath);
+        }
+        if (!compressionSupported){
+            return null;
+        }
+        String compressedPath = TextureTranscoder.compressedPath(texturePath);
+        File compressedFile = new File(compressedPath);
+        if (compressedFile.exists() && compressedFile.lastModified() >= new File(texturePath).lastModified()){
+            try{
+                return DdsFile.read(compressedPath);
+            }
+            catch (RuntimeException excp){
+                Logger.warn(excp, "Transcoding again unreadable texture [{}]", compressedPath);
+            }
+        }
+        return null;
+    }
+
+    // Decodes an image file to RGBA8
+    private static ImageData decodeRgba(String texturePath){
+        try(MemoryStack stack = MemoryStack.stackPush()){
+            IntBuffer w = stack.mallocInt(1);
+            IntBuffer h = stack.mallocInt(1);
+            IntBuffer channels = stack.mallocInt(1);
+
+            // texturePath = filePath -> stb library is native and doesn't understand classpath
+            ByteBuffer buf = stbi_load(texturePath, w, h, channels, 4);
+            if(buf == null){
+                throw new RuntimeException("Image file [" +texturePath+"] not loaded: " +stbi_failure_reason());
+            }
+            return new ImageData(w.get(), h.get(), GL_RGBA8, 1, buf);
         }
-        return texture;
     }
-}
 
+    private record ArrayKey(int width, int height, int format, int levels) {
+    }
+
+    // Residency state of a texture path. texture is null while not resident
+    private static class Entry {
+        private boolean evicted;
+        private long lastUsedFrame;
+        private int refCount;
+        private Texture texture;
+    }
+
+    // Image ready to upload. format: GL_RGBA8, decoded by stb, or a compressed internal format with levels mip
+    // levels back to back in off heap memory. Released with free()
+    public record ImageData(int width, int height, int format, int levels, ByteBuffer buf) {
+        public void free(){
+            if (format == GL_RGBA8){
+                stbi_image_free(buf);
+            }
+            else{
+                MemoryUtil.memFree(buf);
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package main.lwjglb.engine.graph;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.*;
+/**
+ * Compresses RGBA8 images to BC1 (opaque) or BC3 (with alpha), including a box filtered mip chain, so
+ * TextureCache can upload them without decoding or glGenerateMipmap on later runs.
+ * The encoder fits each 4x4 block's endpoints to its color bounding box, inset by 1/16 to reduce the error of the
+ * interpolated colors, then picks the nearest palette entry per texel: fast enough for a first run transcode,
+ * at a quality close to the usual real time encoders. Does not touch GL, so it can run on any thread.
+ * Compressed files go to CACHE_DIR, never next to the source images.
+ */
+public class TextureTranscoder {
+    public static final String CACHE_DIR = "cache/textures";
+
+    private TextureTranscoder(){
+        // util class
+    }
+
+    // Path of the compressed file of a source image in CACHE_DIR: its file name, a hash of its absolute path (to
+    // tell apart images with the same name) and the .dds extension
+    public static String compressedPath(String texturePath){
+        String absPath = new File(texturePath).getAbsolutePath();
+        String name = new File(texturePath).getName() + "-" + Integer.toHexString(absPath.hashCode());
+        return Paths.get(CACHE_DIR, name + DdsFile.EXTENSION).toString();
+    }
+
+    // Compresses an RGBA8 image (not freed) to a new image with all its mip levels, freed with ImageData.free()
+    public static TextureCache.ImageData transcode(TextureCache.ImageData imageData){
+        int width = imageData.width();
+        int height = imageData.height();
+        ByteBuffer rgba = imageData.buf();
+        boolean alpha = false;
+        for (int i = 3; i < width * height * 4 && !alpha; i += 4){
+            alpha = (rgba.get(i) & 0xFF) != 0xFF;
+        }
+        int format = alpha ? GL_COMPRESSED_RGBA_S3TC_DXT5_EXT : GL_COMPRESSED_RGBA_S3TC_DXT1_EXT;
+        int levels = 1 + (int) Math.floor(Math.log(Math.max(width, height)) / Math.log(2));
+
+        ByteBuffer out = MemoryUtil.memAlloc(DdsFile.size(format, width, height, levels));
+        ByteBuffer level = rgba;
+        int levelWidth = width;
+        int levelHeight = height;
+        try{
+            for (int i = 0; i < levels; i++){
+                compressLevel(level, levelWidth, levelHeight, alpha, out);
+                if (i < levels - 1){
+                    ByteBuffer next = downsample(level, levelWidth, levelHeight);
+                    if (level != rgba){
+                        MemoryUtil.memFree(level);
+                    }
+                    level = next;
+                    levelWidth = Math.max(1, levelWidth >> 1);
+                    levelHeight = Math.max(1, levelHeight >> 1);
+                }
+            }
+        }
+        catch (RuntimeException excp){
+            MemoryUtil.memFree(out);
+            throw excp;
+        }
+        finally{
+            if (level != rgba){
+                MemoryUtil.memFree(level);
+            }
+        }
+        out.flip();
+        return new TextureCache.ImageData(width, height, format, levels, out);
+    }
+
+    private static void compressLevel(ByteBuffer rgba, int width, int height, boolean alpha, ByteBuffer out){
+        int[] block = new int[64];
+        for (int by = 0; by < height; by += 4){
+            for (int bx = 0; bx < width; bx += 4){
+                // Blocks past the edge of the image repeat its last row / column
+                for (int y = 0; y < 4; y++){
+                    int py = Math.min(by + y, height - 1);
+                    for (int x = 0; x < 4; x++){
+                        int src = (py * width + Math.min(bx + x, width - 1)) * 4;
+                        int dst = (y * 4 + x) * 4;
+                        for (int c = 0; c < 4; c++){
+                            block[dst + c] = rgba.get(src + c) & 0xFF;
+                        }
+                    }
+                }
+                if (alpha){
+                    encodeAlphaBlock(block, out);
+                }
+                encodeColorBlock(block, out);
+            }
+        }
+    }
+
+    // Halves an RGBA8 image averaging 2x2 texels; odd sizes repeat the last row / column
+    private static ByteBuffer downsample(ByteBuffer rgba, int width, int height){
+        int newWidth = Math.max(1, width >> 1);
+        int newHeight = Math.max(1, height >> 1);
+        ByteBuffer out = MemoryUtil.memAlloc(newWidth * newHeight * 4);
+        for (int y = 0; y < newHeight; y++){
+            int y0 = Math.min(y * 2, height - 1);
+            int y1 = Math.min(y * 2 + 1, height - 1);
+            for (int x = 0; x < newWidth; x++){
+                int x0 = Math.min(x * 2, width - 1);
+                int x1 = Math.min(x * 2 + 1, width - 1);
+                for (int c = 0; c < 4; c++){
+                    int sum = (rgba.get((y0 * width + x0) * 4 + c) & 0xFF) + (rgba.get((y0 * width + x1) * 4 + c) & 0xFF) +
+                            (rgba.get((y1 * width + x0) * 4 + c) & 0xFF) + (rgba.get((y1 * width + x1) * 4 + c) & 0xFF);
+                    out.put((y * newWidth + x) * 4 + c, (byte) ((sum + 2) >> 2));
+                }
+            }
+        }
+        return out;
+    }
+
+    // BC3 alpha block: two 8 bit endpoints and 3 bit indices into the 8 values interpolated between them
+    private static void encodeAlphaBlock(int[] block, ByteBuffer out){
+        int min = 255;
+        int max = 0;
+        for (int i = 0; i < 16; i++){
+            min = Math.min(min, block[i * 4 + 3]);
+            max = Math.max(max, block[i * 4 + 3]);
+        }
+        out.put((byte) max);
+        out.put((byte) min);
+        long indices = 0;
+        if (max > min){
+            int[] palette = new int[8];
+            palette[0] = max;
+            palette[1] = min;
+            for (int i = 1; i < 7; i++){
+                palette[i + 1] = ((7 - i) * max + i * min) / 7;
+            }
+            for (int i = 0; i < 16; i++){
+                indices |= (long) nearest(palette, block[i * 4 + 3]) << (i * 3);
+            }
+        }
+        for (int i = 0; i < 6; i++){
+            out.put((byte) (indices >>> (i * 8)));
+        }
+    }
+
+    // BC1 color block: two RGB565 endpoints and 2 bit indices into them and the two colors at 1/3 and 2/3
+    private static void encodeColorBlock(int[] block, ByteBuffer out){
+        int[] min = {255, 255, 255};
+        int[] max = {0, 0, 0};
+        for (int i = 0; i < 16; i++){
+            for (int c = 0; c < 3; c++){
+                min[c] = Math.min(min[c], block[i * 4 + c]);
+                max[c] = Math.max(max[c], block[i * 4 + c]);
+            }
+        }
+        for (int c = 0; c < 3; c++){
+            int inset = (max[c] - min[c]) >> 4;
+            min[c] += inset;
+            max[c] -= inset;
+        }
+        int color0 = to565(max);
+        int color1 = to565(min);
+        // color0 > color1 selects the 4 color mode (the other one has a transparent entry)
+        if (color0 < color1){
+            int tmp = color0;
+            color0 = color1;
+            color1 = tmp;
+        }
+        int indices = 0;
+        if (color0 != color1){
+            int[][] palette = new int[4][];
+            palette[0] = from565(color0);
+            palette[1] = from565(color1);
+            palette[2] = new int[3];
+            palette[3] = new int[3];
+            for (int c = 0; c < 3; c++){
+                palette[2][c] = (2 * palette[0][c] + palette[1][c]) / 3;
+                palette[3][c] = (palette[0][c] + 2 * palette[1][c]) / 3;
+            }
+            for (int i = 0; i < 16; i++){
+                int best = 0;
+                int bestDist = Integer.MAX_VALUE;
+                for (int p = 0; p < 4; p++){
+                    int dr = block[i * 4] - palette[p][0];
+                    int dg = block[i * 4 + 1] - palette[p][1];
+                    int db = block[i * 4 + 2] - palette[p][2];
+                    int dist = dr * dr + dg * dg + db * db;
+                    if (dist < bestDist){
+                        bestDist = dist;
+                        best = p;
+                    }
+                }
+                indices |= best << (i * 2);
+            }
+        }
+        out.put((byte) color0).put((byte) (color0 >> 8));
+        out.put((byte) color1).put((byte) (color1 >> 8));
+        for (int i = 0; i < 4; i++){
+            out.put((byte) (indices >>> (i * 8)));
+        }
+    }
+
+    private static int[] from565(int color){
+        int r = (color >> 11) & 0x1F;
+        int g = (color >> 5) & 0x3F;
+        int b = color & 0x1F;
+        return new int[]{(r << 3) | (r >> 2), (g << 2) | (g >> 4), (b << 3) | (b >> 2)};
+    }
+
+    private static int nearest(int[] palette, int value){
+        int best = 0;
+        for (int i = 1; i < palette.length; i++){
+            if (Math.abs(palette[i] - value) < Math.abs(palette[best] - value)){
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static int to565(int[] rgb){
+        return ((rgb[0] * 31 + 127) / 255) << 11 | ((rgb[1] * 63 + 127) / 255) << 5 | (rgb[2] * 31 + 127) / 255;
+    }
+}
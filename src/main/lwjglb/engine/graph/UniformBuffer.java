@@ -0,0 +1,70 @@
+package main.lwjglb.engine.graph;
+
+import main.lwjglb.engine.Profiler;
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL31.*;
+/**
+ * Uniform buffer object holding std140 blocks, rewritten as a whole once per frame: begin() returns an off heap
+ * buffer to fill, upload() orphans the GL storage and copies it. Shaders declare the block with the same binding
+ * (layout binding=...), so no block lookups are needed. A buffer can hold several copies of a block, e.g. one per
+ * material, at offsets multiple of getStride(blockSize), bound one at a time with bindRange.
+ */
+public class UniformBuffer {
+    // Smallest store allocated: bindings to an empty buffer are invalid
+    private static final int MIN_SIZE = 16;
+    private static int offsetAlignment;
+    private final int binding;
+    private final int bufferId;
+    private ByteBuffer data;
+
+    public UniformBuffer(int binding, int initialSize){
+        this.binding = binding;
+        bufferId = glGenBuffers();
+        data = MemoryUtil.memAlloc(initialSize);
+    }
+
+    // Returns the buffer, cleared, to be written with absolute puts before upload(size). Grows it to hold at
+    // least size bytes
+    public ByteBuffer begin(int size){
+        if (data.capacity() < size){
+            data = MemoryUtil.memRealloc(data, Math.max(size, data.capacity() * 2));
+        }
+        return data.clear();
+    }
+
+    // Binds the whole buffer to the block's binding point
+    public void bind(){
+        glBindBufferBase(GL_UNIFORM_BUFFER, binding, bufferId);
+    }
+
+    // Binds the block copy at offset (a multiple of getStride) to the block's binding point
+    public void bindRange(long offset, long blockSize){
+        glBindBufferRange(GL_UNIFORM_BUFFER, binding, bufferId, offset, blockSize);
+    }
+
+    public void cleanup(){
+        glDeleteBuffers(bufferId);
+        MemoryUtil.memFree(data);
+    }
+
+    // Bytes between consecutive copies of a block: its size rounded up to the GL offset alignment for ranges
+    public static int getStride(int blockSize){
+        if (offsetAlignment == 0){
+            offsetAlignment = glGetInteger(GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT);
+        }
+        return (blockSize + offsetAlignment - 1) / offsetAlignment * offsetAlignment;
+    }
+
+    // Uploads the first size bytes written since begin(), orphaning the previous storage so the upload does not
+    // wait for draws still reading it
+    public void upload(int size){
+        glBindBuffer(GL_UNIFORM_BUFFER, bufferId);
+        glBufferData(GL_UNIFORM_BUFFER, Math.max(size, MIN_SIZE), GL_STREAM_DRAW);
+        glBufferSubData(GL_UNIFORM_BUFFER, 0, data.limit(size));
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+        Profiler.count(Profiler.Counter.UNIFORM_UPLOADS, 1);
+    }
+}
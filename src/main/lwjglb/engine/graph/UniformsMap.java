@@ -1,7 +1,7 @@
 package main.lwjglb.engine.graph;
 
+import main.lwjglb.engine.Profiler;
 import org.joml.*;
-import org.lwjgl.system.MemoryStack;
 
 import java.util.*;
 
@@ -9,17 +9,23 @@ import static org.lwjgl.opengl.GL20.*;
 /**
  * Create references to the uniforms and sets up their values
  * Constructor receives identifier of the shader program and defines a Map to store the references
+ * createUniform returns the uniform's location, which the int overloads of setUniform take directly: per draw
+ * uniforms should be set that way, without a map lookup. The String overloads look the location up first.
+ * Per frame and per material data live in uniform buffers instead (see UniformBuffer).
  */
 public class UniformsMap {
+    private final float[] matrixData;
     private int programId;
     private Map<String, Integer> uniforms;
 
     public UniformsMap(int programId){
         this.programId = programId;
+        matrixData = new float[16];
         uniforms = new HashMap<>();
     }
 
-    public void createUniform(String uniformName){
+    // Returns the location of the uniform, to be kept and passed to setUniform
+    public int createUniform(String uniformName){
 
         // Receives shader program identifier and name of uniform
         int uniformLocation = glGetUniformLocation(programId, uniformName);
@@ -27,8 +33,9 @@ public class UniformsMap {
             throw new RuntimeException("Could not find uniform ["+uniformName+"] in shader program [" + programId+"]");
         }
         uniforms.put(uniformName, uniformLocation);
+        return uniformLocation;
     }
-    
+
     private int getUniformLocation(String uniformName){
         Integer location = uniforms.get(uniformName);
         if (location == null){
@@ -37,23 +44,31 @@ public class UniformsMap {
         return location.intValue();
     }
 
+    public void setUniform(int location, int value){
+        glUniform1i(location, value);
+        Profiler.count(Profiler.Counter.UNIFORM_UPLOADS, 1);
+    }
+
+    // Loads 4x4 Matrix, through an array owned by the map (no stack or buffer allocation)
+    public void setUniform(int location, Matrix4f value){
+        glUniformMatrix4fv(location, false, value.get(matrixData));
+        Profiler.count(Profiler.Counter.UNIFORM_UPLOADS, 1);
+    }
+
+    public void setUniform(int location, Vector4f value){
+        glUniform4f(location, value.x, value.y, value.z, value.w);
+        Profiler.count(Profiler.Counter.UNIFORM_UPLOADS, 1);
+    }
+
     public void setUniform(String uniformName, int value){
-        glUniform1i(getUniformLocation(uniformName), value);
+        setUniform(getUniformLocation(uniformName), value);
     }
 
-    // Loads 4x4 Matrix
     public void setUniform(String uniformName, Matrix4f value){
-        try (MemoryStack stack = MemoryStack.stackPush()){
-            glUniformMatrix4fv(getUniformLocation(uniformName), false, value.get(stack.mallocFloat(16)));
-            //Integer location = uniforms.get(uniformName);
-            //if (location == null){
-            //    throw new RuntimeException("Could not find uniform [" + uniformName+ "]");
-            //}
-            //glUniformMatrix4fv(location.intValue(), false, value.get(stack.mallocFloat(16)));
-        }
+        setUniform(getUniformLocation(uniformName), value);
     }
 
     public void setUniform(String uniformName, Vector4f value){
-        glUniform4f(getUniformLocation(uniformName), value.x, value.y, value.z, value.w);
+        setUniform(getUniformLocation(uniformName), value);
     }
 }
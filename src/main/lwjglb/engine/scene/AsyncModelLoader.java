@@ -0,0 +1,236 @@
+package main.lwjglb.engine.scene;
+
+import main.lwjglb.engine.Profiler;
+import main.lwjglb.engine.graph.*;
+import org.tinylog.Logger;
+
+import java.util.*;
+import java.util.concurrent.*;
+/**
+ * Loads models without blocking the GL thread.
+ * File I/O, Assimp import, vertex extraction and image decoding run on a pool of worker threads. The GL uploads
+ * (one per staging chunk of mesh data, one per texture) are queued and executed by processUploads(), which the
+ * engine calls once per frame with a time budget, so a big load is spread over several frames instead of freezing
+ * one.
+ * loadModel returns a future completed on the GL thread once all the meshes are uploaded, so callbacks attached
+ * to it can add the model and its entities to the scene. Textures may still be loading at that point; until they
+ * are, TextureCache.getTexture returns the DEFAULT_TEXTURE for them. Textures evicted by the cache and drawn again
+ * are reloaded the same way.
+ */
+public class AsyncModelLoader {
+    public static final long DEFAULT_UPLOAD_BUDGET_NANOS = 2_000_000L;
+    private static final Profiler.Marker DECODE_TEXTURE = Profiler.marker("decodeTexture");
+    private static final Profiler.Marker LOAD_MODEL = Profiler.marker("loadModelData");
+    private static final Profiler.Marker UPLOADS = Profiler.marker("uploads");
+    private final MeshArena meshArena;
+    private final Set<String> pendingTextures; // Only accessed from the GL thread
+    private final TextureCache textureCache;
+    private final Queue<Runnable> uploadQueue;
+    private final ExecutorService workers;
+
+    public AsyncModelLoader(TextureCache textureCache, MeshArena meshArena){
+        this.textureCache = textureCache;
+        this.meshArena = meshArena;
+        pendingTextures = new HashSet<>();
+        uploadQueue = new ConcurrentLinkedQueue<>();
+        int numThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        workers = Executors.newFixedThreadPool(numThreads, runnable -> {
+            Thread thread = new Thread(runnable, "model-loader");
+            thread.setDaemon(true); // Do not keep the app alive if a load is in progress on exit
+            return thread;
+        });
+    }
+
+    // Stops the workers and drops queued uploads
+    public void cleanup(){
+        workers.shutdownNow();
+        uploadQueue.clear();
+    }
+
+    public boolean hasPendingUploads(){
+        return !uploadQueue.isEmpty();
+    }
+
+    public CompletableFuture<Model> loadModel(String modelId, String modelPath){
+        return loadModel(modelId, modelPath, ModelLoader.DEFAULT_FLAGS);
+    }
+
+    public CompletableFuture<Model> loadModel(String modelId, String modelPath, int flags){
+        return loadModel(modelId, modelPath, flags, false);
+    }
+
+    // generateLods: If true, simplified levels of detail are generated for the meshes (see ModelLoader)
+    public CompletableFuture<Model> loadModel(String modelId, String modelPath, int flags, boolean generateLods){
+        CompletableFuture<Model> future = new CompletableFuture<>();
+        workers.execute(() -> {
+            LOAD_MODEL.begin();
+            try{
+                ModelLoader.ModelData modelData = ModelLoader.loadModelData(modelPath, flags, generateLods);
+                uploadQueue.add(() -> startUpload(modelId, modelData, future));
+            }
+            catch (RuntimeException excp){
+                Logger.error(excp, "Error loading model [{}]", modelPath);
+                future.completeExceptionally(excp);
+            }
+            finally{
+                LOAD_MODEL.end();
+            }
+        });
+        return future;
+    }
+
+    // Decodes the texture on a worker and queues its upload, unless it is already cached or on its way
+    private void loadTexture(String texturePath){
+        if (texturePath == null || textureCache.contains(texturePath) || !pendingTextures.add(texturePath)){
+            return;
+        }
+        workers.execute(() -> {
+            DECODE_TEXTURE.begin();
+            try{
+                TextureCache.ImageData imageData = TextureCache.decode(texturePath);
+                uploadQueue.add(() -> {
+                    textureCache.addTexture(texturePath, imageData);
+                    pendingTextures.remove(texturePath);
+                });
+            }
+            catch (RuntimeException excp){
+                // The material keeps showing the default texture
+                Logger.error(excp, "Error loading texture [{}]", texturePath);
+                uploadQueue.add(() -> pendingTextures.remove(texturePath));
+            }
+            finally{
+                DECODE_TEXTURE.end();
+            }
+        });
+    }
+
+    // Runs queued GL uploads until the budget is spent. At least one upload runs per call so loads always progress.
+    // Must be called from the thread owning the GL context
+    public void processUploads(long budgetNanos){
+        UPLOADS.begin();
+        try{
+            long start = System.nanoTime();
+            // Evicted textures drawn again
+            String texturePath;
+            while ((texturePath = textureCache.pollReload()) != null){
+                loadTexture(texturePath);
+            }
+            Runnable upload;
+            while ((upload = uploadQueue.poll()) != null){
+                upload.run();
+                if (System.nanoTime() - start >= budgetNanos){
+                    break;
+                }
+            }
+        }
+        finally{
+            UPLOADS.end();
+        }
+    }
+
+    // Runs on the GL thread: starts the texture loads and queues the uploads of the meshes. Meshes going to the
+    // arena are uploaded a chunk per queue item (see queueChunkedUpload), others with a single item each
+    private void startUpload(String modelId, ModelLoader.ModelData modelData, CompletableFuture<Model> future){
+        for (Material material : modelData.materials()){
+            loadTexture(material.getTexturePath());
+        }
+        Model model = new Model(modelId, modelData.materials());
+        List<ModelLoader.MeshData> meshDataList = modelData.meshes();
+        if (meshDataList.isEmpty()){
+            future.complete(model);
+            return;
+        }
+        for (int i = 0; i < meshDataList.size(); i++){
+            ModelLoader.MeshData meshData = meshDataList.get(i);
+            boolean last = i == meshDataList.size() - 1;
+            if (meshArena != null && MeshArena.canPack(meshData.textCoords())){
+                queueChunkedUpload(modelId, model, meshData, last, future);
+                continue;
+            }
+            uploadQueue.add(() -> {
+                if (future.isDone()){
+                    meshData.free(); // An earlier mesh failed, createMesh will not free this one
+                    return;
+                }
+                try{
+                    addMesh(model, meshData, ModelLoader.createMesh(meshData, null), last, future);
+                }
+                catch (RuntimeException excp){
+                    failUpload(modelId, model, future, excp);
+                }
+            });
+        }
+    }
+
+    private static void addMesh(Model model, ModelLoader.MeshData meshData, Mesh mesh, boolean last,
+                                CompletableFuture<Model> future){
+        model.getMaterialList().get(meshData.materialIdx()).getMeshList().add(mesh);
+        if (last){
+            model.updateAabb();
+            future.complete(model);
+        }
+    }
+
+    private static void failUpload(String modelId, Model model, CompletableFuture<Model> future, RuntimeException excp){
+        Logger.error(excp, "Error uploading model [{}]", modelId);
+        model.cleanup();
+        future.completeExceptionally(excp);
+    }
+
+    // Queues the upload of a mesh into the arena as one item reserving its space, one item per staging chunk of
+    // vertices or indices, and one adding it to the model. processUploads checks its budget between items, so a
+    // multi million vertex mesh is spread over several frames instead of stalling one. Items of other loads may
+    // run in between; those of this mesh stay in order
+    private void queueChunkedUpload(String modelId, Model model, ModelLoader.MeshData meshData, boolean last,
+                                    CompletableFuture<Model> future){
+        int numVertices = meshData.positions().remaining() / 3;
+        int numIndices = meshData.indices().remaining();
+        int indicesPerChunk = BufferUploader.CHUNK_SIZE / Integer.BYTES;
+        Mesh[] mesh = new Mesh[1];
+        uploadQueue.add(() -> {
+            if (!future.isDone()){
+                try{
+                    mesh[0] = meshArena.reserve(numVertices, meshData.lodIndexCounts(), meshData.aabbMin(),
+                            meshData.aabbMax());
+                }
+                catch (RuntimeException excp){
+                    failUpload(modelId, model, future, excp);
+                }
+            }
+        });
+        for (int first = 0; first < numVertices; first += MeshArena.VERTICES_PER_CHUNK){
+            int start = first;
+            int count = Math.min(MeshArena.VERTICES_PER_CHUNK, numVertices - first);
+            uploadQueue.add(() -> {
+                if (!future.isDone()){
+                    try{
+                        meshArena.uploadVertices(mesh[0], meshData.positions(), meshData.textCoords(), start, count);
+                    }
+                    catch (RuntimeException excp){
+                        failUpload(modelId, model, future, excp);
+                    }
+                }
+            });
+        }
+        for (int first = 0; first < numIndices; first += indicesPerChunk){
+            int start = first;
+            int count = Math.min(indicesPerChunk, numIndices - first);
+            uploadQueue.add(() -> {
+                if (!future.isDone()){
+                    try{
+                        meshArena.uploadIndices(mesh[0], meshData.indices(), start, count);
+                    }
+                    catch (RuntimeException excp){
+                        failUpload(modelId, model, future, excp);
+                    }
+                }
+            });
+        }
+        uploadQueue.add(() -> {
+            meshData.free();
+            if (!future.isDone()){
+                addMesh(model, meshData, mesh[0], last, future);
+            }
+        });
+    }
+}
@@ -0,0 +1,384 @@
+package main.lwjglb.engine.scene;
+
+import org.joml.*;
+
+import java.lang.Math;
+import java.util.Arrays;
+/**
+ * Dynamic bounding volume hierarchy (AABB tree) over the world bounds of the entities in a scene.
+ * Leaves hold "fat" bounds, enlarged by a margin, so an entity that moves a little does not touch the tree.
+ * It is only removed and reinserted when its bounds leave its fat box. Inner nodes are kept balanced with
+ * tree rotations, so inserts, removals and updates are O(log n).
+ * Node data lives in flat arrays indexed by node id. Freed nodes are chained through the parent array.
+ * Frustum queries skip subtrees outside the frustum and accept subtrees fully inside it without testing
+ * their leaves. The entities of the leaves reached are listed (getVisibleEntity), so a query costs the nodes it
+ * visits rather than the size of the scene, and also stamped per leaf for isVisible().
+ */
+public class BoundingVolumeHierarchy {
+    private static final float FAT_MARGIN = 0.1f;
+    private static final float FAT_SCALE = 0.1f; // Extra margin relative to the size of the bounds
+    private static final int INSIDE_FLAG = 1 << 31;
+    private static final int NULL_NODE = -1;
+    private float[] bounds; // minX, minY, minZ, maxX, maxY, maxZ per node
+    private int[] child1;
+    private int[] child2;
+    private Entity[] entities;
+    private int freeList;
+    private int[] height; // Leaves are 0, free nodes -1
+    private int numVisible;
+    private int[] parent;
+    private int queryFrame;
+    private int root;
+    private int[] stack;
+    private Vector3f worldMax;
+    private Vector3f worldMin;
+    private Entity[] visibleEntities;
+    private int[] visibleFrame;
+
+    public BoundingVolumeHierarchy(){
+        root = NULL_NODE;
+        freeList = NULL_NODE;
+        bounds = new float[0];
+        child1 = new int[0];
+        child2 = new int[0];
+        entities = new Entity[0];
+        height = new int[0];
+        parent = new int[0];
+        visibleFrame = new int[0];
+        visibleEntities = new Entity[64];
+        stack = new int[64];
+        worldMin = new Vector3f();
+        worldMax = new Vector3f();
+        grow(16);
+    }
+
+    private int allocateNode(){
+        if (freeList == NULL_NODE){
+            grow(parent.length * 2);
+        }
+        int node = freeList;
+        freeList = parent[node];
+        parent[node] = NULL_NODE;
+        child1[node] = NULL_NODE;
+        child2[node] = NULL_NODE;
+        height[node] = 0;
+        visibleFrame[node] = queryFrame;
+        return node;
+    }
+
+    private float area(int node){
+        int b = node * 6;
+        return surfaceArea(bounds[b + 3] - bounds[b], bounds[b + 4] - bounds[b + 1], bounds[b + 5] - bounds[b + 2]);
+    }
+
+    // Rotates the subtree rooted at nodeA if it is imbalanced. Returns the new root of the subtree
+    private int balance(int nodeA){
+        if (height[nodeA] < 2){
+            return nodeA;
+        }
+        int nodeB = child1[nodeA];
+        int nodeC = child2[nodeA];
+        int diff = height[nodeC] - height[nodeB];
+
+        if (diff > 1){
+            // Rotate C up
+            int nodeF = child1[nodeC];
+            int nodeG = child2[nodeC];
+            child1[nodeC] = nodeA;
+            parent[nodeC] = parent[nodeA];
+            parent[nodeA] = nodeC;
+            replaceChild(parent[nodeC], nodeA, nodeC);
+            if (height[nodeF] > height[nodeG]){
+                child2[nodeC] = nodeF;
+                child2[nodeA] = nodeG;
+                parent[nodeG] = nodeA;
+                refit(nodeA, nodeB, nodeG);
+                refit(nodeC, nodeA, nodeF);
+            }
+            else{
+                child2[nodeC] = nodeG;
+                child2[nodeA] = nodeF;
+                parent[nodeF] = nodeA;
+                refit(nodeA, nodeB, nodeF);
+                refit(nodeC, nodeA, nodeG);
+            }
+            return nodeC;
+        }
+        if (diff < -1){
+            // Rotate B up
+            int nodeD = child1[nodeB];
+            int nodeE = child2[nodeB];
+            child1[nodeB] = nodeA;
+            parent[nodeB] = parent[nodeA];
+            parent[nodeA] = nodeB;
+            replaceChild(parent[nodeB], nodeA, nodeB);
+            if (height[nodeD] > height[nodeE]){
+                child2[nodeB] = nodeD;
+                child1[nodeA] = nodeE;
+                parent[nodeE] = nodeA;
+                refit(nodeA, nodeC, nodeE);
+                refit(nodeB, nodeA, nodeD);
+            }
+            else{
+                child2[nodeB] = nodeE;
+                child1[nodeA] = nodeD;
+                parent[nodeD] = nodeA;
+                refit(nodeA, nodeC, nodeD);
+                refit(nodeB, nodeA, nodeE);
+            }
+            return nodeB;
+        }
+        return nodeA;
+    }
+
+    private boolean contains(int node, Vector3f min, Vector3f max){
+        int b = node * 6;
+        return bounds[b] <= min.x && bounds[b + 1] <= min.y && bounds[b + 2] <= min.z &&
+                bounds[b + 3] >= max.x && bounds[b + 4] >= max.y && bounds[b + 5] >= max.z;
+    }
+
+    private void freeNode(int node){
+        parent[node] = freeList;
+        height[node] = -1;
+        entities[node] = null;
+        freeList = node;
+    }
+
+    private void grow(int capacity){
+        int oldCapacity = parent.length;
+        bounds = Arrays.copyOf(bounds, capacity * 6);
+        child1 = Arrays.copyOf(child1, capacity);
+        child2 = Arrays.copyOf(child2, capacity);
+        entities = Arrays.copyOf(entities, capacity);
+        height = Arrays.copyOf(height, capacity);
+        parent = Arrays.copyOf(parent, capacity);
+        visibleFrame = Arrays.copyOf(visibleFrame, capacity);
+        // Chain the new nodes into the free list
+        for (int i = capacity - 1; i >= oldCapacity; i--){
+            freeNode(i);
+        }
+    }
+
+    // Adds an entity using its current model matrix. The entity is updated by the tree as it moves
+    public void insert(Entity entity){
+        int leaf = allocateNode();
+        entities[leaf] = entity;
+        entity.setBvh(this, leaf);
+        entity.getModelMatrix().transformAab(entity.getAabbMin(), entity.getAabbMax(), worldMin, worldMax);
+        setFatBounds(leaf, worldMin, worldMax);
+        insertLeaf(leaf);
+    }
+
+    private void insertLeaf(int leaf){
+        if (root == NULL_NODE){
+            root = leaf;
+            parent[leaf] = NULL_NODE;
+            return;
+        }
+
+        // Find the best sibling: descend while it is cheaper (in surface area) than pairing with the current node
+        int lb = leaf * 6;
+        int index = root;
+        while (height[index] > 0){
+            float nodeArea = area(index);
+            float combinedArea = unionArea(index, lb);
+            float cost = 2.0f * combinedArea;
+            float inheritanceCost = 2.0f * (combinedArea - nodeArea);
+            float cost1 = insertCost(child1[index], lb) + inheritanceCost;
+            float cost2 = insertCost(child2[index], lb) + inheritanceCost;
+            if (cost < cost1 && cost < cost2){
+                break;
+            }
+            index = cost1 < cost2 ? child1[index] : child2[index];
+        }
+
+        int sibling = index;
+        int oldParent = parent[sibling];
+        int newParent = allocateNode();
+        parent[newParent] = oldParent;
+        if (oldParent != NULL_NODE){
+            replaceChild(oldParent, sibling, newParent);
+        }
+        else{
+            root = newParent;
+        }
+        child1[newParent] = sibling;
+        child2[newParent] = leaf;
+        parent[sibling] = newParent;
+        parent[leaf] = newParent;
+        refit(newParent, sibling, leaf);
+
+        refitAncestors(parent[leaf]);
+    }
+
+    private float insertCost(int node, int lb){
+        if (height[node] == 0){
+            return unionArea(node, lb);
+        }
+        return unionArea(node, lb) - area(node);
+    }
+
+    // Number of entities found by the last query
+    public int getNumVisible(){
+        return numVisible;
+    }
+
+    // Entity i found by the last query, in no particular order
+    public Entity getVisibleEntity(int i){
+        return visibleEntities[i];
+    }
+
+    // Returns true if the entity was in the frustum of the last query, or is not tracked by this tree
+    public boolean isVisible(Entity entity){
+        int proxyId = entity.getProxyId();
+        return entity.getBvh() != this || visibleFrame[proxyId] == queryFrame;
+    }
+
+    // Lists every entity whose bounds touch the frustum and marks it as visible for this frame
+    public void query(FrustumIntersection frustum){
+        queryFrame++;
+        int previousVisible = numVisible;
+        numVisible = 0;
+        if (root != NULL_NODE){
+            collectVisible(frustum);
+        }
+        // Drop references to entities from earlier, bigger results
+        if (numVisible < previousVisible){
+            Arrays.fill(visibleEntities, numVisible, previousVisible, null);
+        }
+    }
+
+    private void collectVisible(FrustumIntersection frustum){
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0){
+            int entry = stack[--top];
+            int node = entry & ~INSIDE_FLAG;
+            boolean inside = (entry & INSIDE_FLAG) != 0;
+            if (!inside){
+                int b = node * 6;
+                int result = frustum.intersectAab(bounds[b], bounds[b + 1], bounds[b + 2],
+                        bounds[b + 3], bounds[b + 4], bounds[b + 5]);
+                if (result == FrustumIntersection.INSIDE){
+                    inside = true;
+                }
+                else if (result != FrustumIntersection.INTERSECT){
+                    continue;
+                }
+            }
+            if (height[node] == 0){
+                visibleFrame[node] = queryFrame;
+                if (numVisible == visibleEntities.length){
+                    visibleEntities = Arrays.copyOf(visibleEntities, numVisible * 2);
+                }
+                visibleEntities[numVisible++] = entities[node];
+                continue;
+            }
+            if (top + 2 > stack.length){
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            int flag = inside ? INSIDE_FLAG : 0;
+            stack[top++] = child1[node] | flag;
+            stack[top++] = child2[node] | flag;
+        }
+    }
+
+    // Walks from node up to the root restoring balance, heights and bounds
+    private void refitAncestors(int node){
+        int index = node;
+        while (index != NULL_NODE){
+            index = balance(index);
+            refit(index, child1[index], child2[index]);
+            index = parent[index];
+        }
+    }
+
+    private void refit(int node, int childA, int childB){
+        int b = node * 6;
+        int ba = childA * 6;
+        int bb = childB * 6;
+        for (int i = 0; i < 3; i++){
+            bounds[b + i] = Math.min(bounds[ba + i], bounds[bb + i]);
+            bounds[b + 3 + i] = Math.max(bounds[ba + 3 + i], bounds[bb + 3 + i]);
+        }
+        height[node] = 1 + Math.max(height[childA], height[childB]);
+    }
+
+    public void remove(Entity entity){
+        if (entity.getBvh() != this){
+            return;
+        }
+        int leaf = entity.getProxyId();
+        removeLeaf(leaf);
+        freeNode(leaf);
+        entity.setBvh(null, NULL_NODE);
+    }
+
+    private void removeLeaf(int leaf){
+        if (leaf == root){
+            root = NULL_NODE;
+            return;
+        }
+        int leafParent = parent[leaf];
+        int grandParent = parent[leafParent];
+        int sibling = child1[leafParent] == leaf ? child2[leafParent] : child1[leafParent];
+        parent[sibling] = grandParent;
+        freeNode(leafParent);
+        if (grandParent != NULL_NODE){
+            replaceChild(grandParent, leafParent, sibling);
+            refitAncestors(grandParent);
+        }
+        else{
+            root = sibling;
+        }
+    }
+
+    private void replaceChild(int node, int oldChild, int newChild){
+        if (node == NULL_NODE){
+            root = newChild;
+        }
+        else if (child1[node] == oldChild){
+            child1[node] = newChild;
+        }
+        else{
+            child2[node] = newChild;
+        }
+    }
+
+    private void setFatBounds(int node, Vector3f min, Vector3f max){
+        int b = node * 6;
+        float marginX = FAT_MARGIN + (max.x - min.x) * FAT_SCALE;
+        float marginY = FAT_MARGIN + (max.y - min.y) * FAT_SCALE;
+        float marginZ = FAT_MARGIN + (max.z - min.z) * FAT_SCALE;
+        bounds[b] = min.x - marginX;
+        bounds[b + 1] = min.y - marginY;
+        bounds[b + 2] = min.z - marginZ;
+        bounds[b + 3] = max.x + marginX;
+        bounds[b + 4] = max.y + marginY;
+        bounds[b + 5] = max.z + marginZ;
+    }
+
+    private static float surfaceArea(float dx, float dy, float dz){
+        return 2.0f * (dx * dy + dy * dz + dz * dx);
+    }
+
+    private float unionArea(int node, int lb){
+        int b = node * 6;
+        float dx = Math.max(bounds[b + 3], bounds[lb + 3]) - Math.min(bounds[b], bounds[lb]);
+        float dy = Math.max(bounds[b + 4], bounds[lb + 4]) - Math.min(bounds[b + 1], bounds[lb + 1]);
+        float dz = Math.max(bounds[b + 5], bounds[lb + 5]) - Math.min(bounds[b + 2], bounds[lb + 2]);
+        return surfaceArea(dx, dy, dz);
+    }
+
+    // Called after the entity's model matrix changed. Only restructures the tree when the entity left its fat bounds
+    public void update(Entity entity){
+        int leaf = entity.getProxyId();
+        entity.getModelMatrix().transformAab(entity.getAabbMin(), entity.getAabbMax(), worldMin, worldMax);
+        if (contains(leaf, worldMin, worldMax)){
+            return;
+        }
+        removeLeaf(leaf);
+        setFatBounds(leaf, worldMin, worldMax);
+        insertLeaf(leaf);
+    }
+}
@@ -1,23 +1,69 @@
 package main.lwjglb.engine.scene;
 
 import org.joml.*;
-
+/**
+ * Thin handle over a slot in a TransformStore. Position, rotation, scale and model matrix live in the store;
+ * the getters fill and return an object owned by the entity, so changes to it are not written back.
+ * Setters mark the transform dirty and the engine recomputes the model matrix before rendering, so calling
+ * updateModelMatrix by hand is only needed when the matrix is read back in the same update.
+ * An entity attached to a parent has its position, rotation and scale relative to the parent, and follows it:
+ * the model matrix is the parent's times its own.
+ * Removing the entity from its scene frees its slot, after which any use of its transform throws.
+ */
 public class Entity {
     private final String id;
     private final String modelId;
+    private final TransformStore store;
+    private Vector3f aabbMax;
+    private Vector3f aabbMin;
+    private BoundingVolumeHierarchy bvh;
+    private long entityHandle;
+    private int handle;
     private Matrix4f modelMatrix;
     private Vector3f position;
+    private int proxyId;
     private Quaternionf rotation;
-    private float scale;
 
-    // Model instance has a unique identifier and defines attributes for its position, scale, & rotation
-    public Entity(String id, String modelId){
+    // Model instance has a unique identifier and defines attributes for its position, scale, & rotation.
+    // store: transform store of the scene the entity will be added to (Scene.getTransformStore)
+    public Entity(String id, String modelId, TransformStore store){
         this.id = id;
         this.modelId = modelId;
+        this.store = store;
+        handle = store.allocate(this); // Identity transform, scale 1
         modelMatrix = new Matrix4f(); 
         position = new Vector3f(); // Position as a 3 component vector
         rotation = new Quaternionf(); // Rotation as a quaternion. Allow express rotations w/o Euler angles
-        scale = 1; // Scale
+        aabbMin = new Vector3f();
+        aabbMax = new Vector3f();
+        entityHandle = -1;
+        proxyId = -1;
+    }
+
+    // Local space bounds, shared with the entity's model
+    public Vector3f getAabbMax(){
+        return aabbMax;
+    }
+
+    public Vector3f getAabbMin(){
+        return aabbMin;
+    }
+
+    BoundingVolumeHierarchy getBvh(){
+        return bvh;
+    }
+
+    // Handle of this entity in the scene's EntityRegistry, or -1 if it is not in a scene
+    public long getEntityHandle(){
+        return entityHandle;
+    }
+
+    // Slot of this entity in its transform store
+    public int getHandle(){
+        if (handle < 0){
+            throw new RuntimeException("Entity [" + id + "] was removed from its scene");
+        }
+        return handle;
     }
 
     public String getId(){
@@ -29,36 +75,84 @@ public class Entity {
     }
 
     public Matrix4f getModelMatrix(){
-        return modelMatrix;
+        return store.getModelMatrix(getHandle(), modelMatrix);
+    }
+
+    int getProxyId(){
+        return proxyId;
+    }
+
+    // Entity this one is attached to, or null
+    public Entity getParent(){
+        int parent = store.getParent(getHandle());
+        return parent >= 0 ? store.getOwner(parent) : null;
     }
 
     public Vector3f getPosition(){
-        return position;
+        return store.getPosition(getHandle(), position);
     }
 
     public Quaternionf getRotation(){
-        return rotation;
+        return store.getRotation(getHandle(), rotation);
     }
 
     public float getScale(){
-        return scale;
+        return store.getScale(getHandle());
+    }
+
+    public TransformStore getTransformStore(){
+        return store;
+    }
+
+    // Set by the hierarchy when the entity is inserted in or removed from it
+    void setBvh(BoundingVolumeHierarchy bvh, int proxyId){
+        this.bvh = bvh;
+        this.proxyId = proxyId;
+    }
+
+    void setEntityHandle(long entityHandle){
+        this.entityHandle = entityHandle;
+    }
+
+    // Frees the entity's transform slot, which later allocations may reuse
+    void releaseTransform(){
+        store.release(getHandle());
+        handle = -1;
+    }
+
+    void setLocalBounds(Vector3f aabbMin, Vector3f aabbMax){
+        this.aabbMin = aabbMin;
+        this.aabbMax = aabbMax;
+    }
+
+    // Attaches this entity to parent, or detaches it if null. Both must share a transform store. The local
+    // transform is kept, so the entity jumps to the same placement relative to its new parent
+    public void setParent(Entity parent){
+        if (parent != null && parent.store != store){
+            throw new RuntimeException("Entity [" + id + "] and its parent [" + parent.id +
+                    "] belong to different transform stores");
+        }
+        store.setParent(getHandle(), parent != null ? parent.getHandle() : -1);
     }
 
     public final void setPosition(float x, float y, float z){
-        position.x = x;
-        position.y = y;
-        position.z = z;
+        store.setPosition(getHandle(), x, y, z);
     }
 
     public void setRotation(float x, float y, float z, float angle){
-        this.rotation.fromAxisAngleRad(x, y, z, angle);
+        rotation.fromAxisAngleRad(x, y, z, angle);
+        store.setRotation(getHandle(), rotation.x, rotation.y, rotation.z, rotation.w);
     }
 
     public void setScale(float scale){
-        this.scale = scale;
+        store.setScale(getHandle(), scale);
     }
 
+    // Uses the parent's current model matrix, so a parent moved in the same update must be updated first
     public void updateModelMatrix(){
-        modelMatrix.translationRotateScale(position, rotation, scale);
+        store.updateModelMatrix(getHandle());
+        if (bvh != null){
+            bvh.update(this);
+        }
     }
 }
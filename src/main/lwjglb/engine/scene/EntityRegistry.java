@@ -0,0 +1,141 @@
+package main.lwjglb.engine.scene;
+
+import main.lwjglb.engine.graph.Model;
+
+import java.util.*;
+/**
+ * Index of the entities in a scene, giving constant time add, remove and lookup by handle or id.
+ * A handle packs a slot index (low 32 bits) and the slot's generation (high bits), bumped whenever the slot is
+ * freed, so a handle kept after its entity was removed resolves to null instead of to whatever entity reuses the
+ * slot. Generations only wrap after 2^31 removals from the same slot.
+ * Each model's entity list stays dense: the registry records every entity's index in it, and removal moves the
+ * list's last entity into the hole (the list is therefore unordered).
+ */
+public class EntityRegistry {
+    private static final int INITIAL_CAPACITY = 64;
+    // Handles stay positive, so -1 is never a valid one
+    private static final int MAX_GENERATION = Integer.MAX_VALUE;
+    private Entity[] entities;
+    private int freeCount;
+    private int freeHead;
+    private int[] freeSlots;
+    private int[] generations;
+    private final Map<String, Long> handlesById;
+    private int[] modelIndices;
+    private Model[] models;
+    private int size; // Highest slot ever used + 1
+
+    public EntityRegistry(){
+        entities = new Entity[INITIAL_CAPACITY];
+        freeSlots = new int[INITIAL_CAPACITY];
+        generations = new int[INITIAL_CAPACITY];
+        handlesById = new HashMap<>();
+        modelIndices = new int[INITIAL_CAPACITY];
+        models = new Model[INITIAL_CAPACITY];
+    }
+
+    // Registers entity and appends it to model's entity list. Returns its handle
+    public long add(Entity entity, Model model){
+        if (handlesById.containsKey(entity.getId())){
+            throw new RuntimeException("Entity [" + entity.getId() + "] already exists");
+        }
+        int slot;
+        if (freeCount > 0){
+            slot = freeSlots[freeHead];
+            freeHead = (freeHead + 1) % freeSlots.length;
+            freeCount--;
+        }
+        else{
+            if (size == entities.length){
+                grow(entities.length * 2);
+            }
+            slot = size++;
+        }
+        List<Entity> modelEntities = model.getEntitiesList();
+        entities[slot] = entity;
+        models[slot] = model;
+        modelIndices[slot] = modelEntities.size();
+        modelEntities.add(entity);
+
+        long handle = (long) generations[slot] << 32 | slot;
+        handlesById.put(entity.getId(), handle);
+        entity.setEntityHandle(handle);
+        return handle;
+    }
+
+    // Entity of the handle, or null if it was removed
+    public Entity get(long handle){
+        int slot = (int) handle;
+        if (handle < 0 || slot >= size || generations[slot] != (int) (handle >>> 32)){
+            return null;
+        }
+        return entities[slot];
+    }
+
+    // Entity with the id, or null if there is none
+    public Entity get(String id){
+        Long handle = handlesById.get(id);
+        return handle != null ? entities[(int) (long) handle] : null;
+    }
+
+    // Handle of the entity with the id, or -1 if there is none
+    public long getHandle(String id){
+        return handlesById.getOrDefault(id, -1L);
+    }
+
+    // Model the entity of the handle was added under, or null if it was removed
+    public Model getModel(long handle){
+        return get(handle) != null ? models[(int) handle] : null;
+    }
+
+    public int getSize(){
+        return handlesById.size();
+    }
+
+    private void grow(int capacity){
+        entities = Arrays.copyOf(entities, capacity);
+        generations = Arrays.copyOf(generations, capacity);
+        modelIndices = Arrays.copyOf(modelIndices, capacity);
+        models = Arrays.copyOf(models, capacity);
+        // Unwrap the free slot queue, which is empty whenever a new slot is needed
+        freeSlots = new int[capacity];
+        freeHead = 0;
+    }
+
+    // Unregisters the entity of the handle and removes it from its model's entity list. Returns it, or null if
+    // the handle was already removed
+    public Entity remove(long handle){
+        Entity entity = get(handle);
+        if (entity == null){
+            return null;
+        }
+        int slot = (int) handle;
+        List<Entity> modelEntities = models[slot].getEntitiesList();
+        int index = modelIndices[slot];
+        Entity last = modelEntities.remove(modelEntities.size() - 1);
+        if (last != entity){
+            modelEntities.set(index, last);
+            modelIndices[(int) last.getEntityHandle()] = index;
+        }
+        handlesById.remove(entity.getId());
+        entity.setEntityHandle(-1);
+        entities[slot] = null;
+        models[slot] = null;
+        generations[slot] = (generations[slot] + 1) & MAX_GENERATION;
+        freeSlots[(freeHead + freeCount) % freeSlots.length] = slot;
+        freeCount++;
+        return entity;
+    }
+
+    // Unregisters every entity of the model, leaving its entity list empty
+    public void removeAll(Model model){
+        List<Entity> modelEntities = model.getEntitiesList();
+        while (!modelEntities.isEmpty()){
+            int last = modelEntities.size() - 1;
+            if (remove(modelEntities.get(last).getEntityHandle()) == null){
+                // Added to the list by hand rather than through the registry
+                modelEntities.remove(last);
+            }
+        }
+    }
+}
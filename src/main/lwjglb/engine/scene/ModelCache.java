@@ -0,0 +1,221 @@
+package main.lwjglb.engine.scene;
+
+import main.lwjglb.engine.graph.Material;
+import org.joml.*;
+import org.tinylog.Logger;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+/**
+ * Binary cache of imported models, so warm starts skip Assimp.
+ * Each source model maps to one file in CACHE_DIR holding the processed result: the material table (diffuse color
+ * and texture path) and, per mesh, its bounds and the position / texture coordinate / index arrays. Files are
+ * validated against the source path, its modification time, the import flags, whether levels of detail were
+ * generated, the format version and the byte order; any mismatch means a miss and the model is imported and cached again.
+ * Hits are memory mapped, and the mesh buffers are views of the mapping handed straight to Mesh or MeshArena.
+ *
+ * Layout, in native byte order, every section padded to 4 bytes:
+ * header: magic, version, byte order mark, flags, levels of detail (0 / 1), source mtime (long), source path
+ * materials: count, then per material diffuse (4 floats) and texture path (-1 length if none)
+ * meshes: count, then per mesh material index, aabb min and max (6 floats), #position floats,
+ *         #texture coordinate floats, #levels of detail, #indices of each level, followed by the three arrays
+ *         (the indices of all the levels back to back)
+ */
+public class ModelCache {
+    public static final String CACHE_DIR = "cache/models";
+    private static final int BYTE_ORDER_MARK = 0x01020304;
+    private static final int MAGIC = 0x4A4D444C; // JMDL
+    private static final int VERSION = 2;
+
+    private ModelCache(){
+        // util class
+    }
+
+    private static Path cacheFile(String modelPath){
+        String absPath = new File(modelPath).getAbsolutePath();
+        String name = new File(modelPath).getName() + "-" + Integer.toHexString(absPath.hashCode()) + ".jmdl";
+        return Paths.get(CACHE_DIR, name);
+    }
+
+    // Deletes the cache file of a model, if any
+    public static void delete(String modelPath) throws IOException{
+        Files.deleteIfExists(cacheFile(modelPath));
+    }
+
+    // Returns the cached model data, or null if there is no valid cache entry
+    public static ModelLoader.ModelData load(String modelPath, int flags, boolean generateLods){
+        Path path = cacheFile(modelPath);
+        if (!Files.exists(path)){
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            // The mapping stays valid after the channel is closed, until the buffers are garbage collected
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.nativeOrder());
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION || buf.getInt() != BYTE_ORDER_MARK ||
+                    buf.getInt() != flags || buf.getInt() != (generateLods ? 1 : 0) ||
+                    buf.getLong() != new File(modelPath).lastModified() ||
+                    !new File(modelPath).getAbsolutePath().equals(readString(buf))){
+                return null;
+            }
+
+            int numMaterials = buf.getInt();
+            List<Material> materialList = new ArrayList<>();
+            for (int i = 0; i < numMaterials; i++){
+                Material material = new Material();
+                Vector4f diffuse = new Vector4f(buf.getFloat(), buf.getFloat(), buf.getFloat(), buf.getFloat());
+                // Keep sharing the DEFAULT_COLOR instance, as freshly imported materials do
+                material.setDiffuseColor(diffuse.equals(Material.DEFAULT_COLOR) ? Material.DEFAULT_COLOR : diffuse);
+                material.setTexturePath(readString(buf));
+                materialList.add(material);
+            }
+
+            int numMeshes = buf.getInt();
+            List<ModelLoader.MeshData> meshDataList = new ArrayList<>();
+            for (int i = 0; i < numMeshes; i++){
+                int materialIdx = buf.getInt();
+                Vector3f aabbMin = new Vector3f(buf.getFloat(), buf.getFloat(), buf.getFloat());
+                Vector3f aabbMax = new Vector3f(buf.getFloat(), buf.getFloat(), buf.getFloat());
+                int numPositions = buf.getInt();
+                int numTextCoords = buf.getInt();
+                int[] lodIndexCounts = new int[buf.getInt()];
+                int numIndices = 0;
+                for (int j = 0; j < lodIndexCounts.length; j++){
+                    lodIndexCounts[j] = buf.getInt();
+                    numIndices += lodIndexCounts[j];
+                }
+                FloatBuffer positions = slice(buf, numPositions).asFloatBuffer();
+                FloatBuffer textCoords = slice(buf, numTextCoords).asFloatBuffer();
+                IntBuffer indices = slice(buf, numIndices).asIntBuffer();
+                meshDataList.add(new ModelLoader.MeshData(positions, textCoords, indices, lodIndexCounts, aabbMin,
+                        aabbMax, materialIdx, false));
+            }
+            return new ModelLoader.ModelData(materialList, meshDataList);
+        }
+        catch (IOException | RuntimeException excp){
+            Logger.warn(excp, "Ignoring unreadable model cache [{}]", path);
+            return null;
+        }
+    }
+
+    private static String readString(ByteBuffer buf){
+        int length = buf.getInt();
+        if (length < 0){
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        buf.position(buf.position() + padding(length));
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int padding(int length){
+        return (4 - (length & 3)) & 3;
+    }
+
+    // View of the next count 4 byte elements of buf, advancing it
+    private static ByteBuffer slice(ByteBuffer buf, int count){
+        int size = count * 4;
+        ByteBuffer slice = buf.slice(buf.position(), size).order(ByteOrder.nativeOrder());
+        buf.position(buf.position() + size);
+        return slice;
+    }
+
+    // Writes the cache entry for a freshly imported model. Failures are logged and otherwise ignored
+    public static void store(String modelPath, int flags, boolean generateLods, ModelLoader.ModelData modelData){
+        Path path = cacheFile(modelPath);
+        byte[] sourcePath = new File(modelPath).getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        List<byte[]> texturePaths = new ArrayList<>();
+        long size = 6 * Integer.BYTES + Long.BYTES + stringSize(sourcePath) + Integer.BYTES;
+        for (Material material : modelData.materials()){
+            String texturePath = material.getTexturePath();
+            byte[] bytes = texturePath != null ? texturePath.getBytes(StandardCharsets.UTF_8) : null;
+            texturePaths.add(bytes);
+            size += 4 * Float.BYTES + stringSize(bytes);
+        }
+        size += Integer.BYTES;
+        for (ModelLoader.MeshData meshData : modelData.meshes()){
+            size += (4 + meshData.lodIndexCounts().length) * Integer.BYTES + 6 * Float.BYTES;
+            size += (long) (meshData.positions().remaining() + meshData.textCoords().remaining() +
+                    meshData.indices().remaining()) * 4;
+        }
+
+        Path tmpPath = null;
+        try{
+            Files.createDirectories(path.getParent());
+            // Write to a temp file and move it in place, so a concurrent load never sees a partial file
+            tmpPath = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+            try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+                ByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size).order(ByteOrder.nativeOrder());
+                buf.putInt(MAGIC).putInt(VERSION).putInt(BYTE_ORDER_MARK).putInt(flags);
+                buf.putInt(generateLods ? 1 : 0);
+                buf.putLong(new File(modelPath).lastModified());
+                writeString(buf, sourcePath);
+
+                buf.putInt(modelData.materials().size());
+                for (int i = 0; i < modelData.materials().size(); i++){
+                    Vector4f diffuse = modelData.materials().get(i).getDiffuseColor();
+                    buf.putFloat(diffuse.x).putFloat(diffuse.y).putFloat(diffuse.z).putFloat(diffuse.w);
+                    writeString(buf, texturePaths.get(i));
+                }
+
+                buf.putInt(modelData.meshes().size());
+                for (ModelLoader.MeshData meshData : modelData.meshes()){
+                    Vector3f aabbMin = meshData.aabbMin();
+                    Vector3f aabbMax = meshData.aabbMax();
+                    buf.putInt(meshData.materialIdx());
+                    buf.putFloat(aabbMin.x).putFloat(aabbMin.y).putFloat(aabbMin.z);
+                    buf.putFloat(aabbMax.x).putFloat(aabbMax.y).putFloat(aabbMax.z);
+                    buf.putInt(meshData.positions().remaining());
+                    buf.putInt(meshData.textCoords().remaining());
+                    buf.putInt(meshData.lodIndexCounts().length);
+                    for (int lodIndexCount : meshData.lodIndexCounts()){
+                        buf.putInt(lodIndexCount);
+                    }
+                    slice(buf, meshData.positions().remaining()).asFloatBuffer().put(meshData.positions().duplicate());
+                    slice(buf, meshData.textCoords().remaining()).asFloatBuffer().put(meshData.textCoords().duplicate());
+                    slice(buf, meshData.indices().remaining()).asIntBuffer().put(meshData.indices().duplicate());
+                }
+            }
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tmpPath = null;
+        }
+        catch (IOException excp){
+            Logger.warn(excp, "Could not write model cache [{}]", path);
+        }
+        finally{
+            // Not moved in place: the write failed
+            deleteTempFile(tmpPath);
+        }
+    }
+
+    // Deletes a temp file left by a failed write, if any
+    private static void deleteTempFile(Path tmpPath){
+        if (tmpPath == null){
+            return;
+        }
+        try{
+            Files.deleteIfExists(tmpPath);
+        }
+        catch (IOException excp){
+            Logger.warn(excp, "Could not delete temp file [{}]", tmpPath);
+        }
+    }
+
+    private static long stringSize(byte[] bytes){
+        return Integer.BYTES + (bytes != null ? bytes.length + padding(bytes.length) : 0);
+    }
+
+    private static void writeString(ByteBuffer buf, byte[] bytes){
+        if (bytes == null){
+            buf.putInt(-1);
+            return;
+        }
+        buf.putInt(bytes.length);
+        buf.put(bytes);
+        buf.position(buf.position() + padding(bytes.length));
+    }
+}
@@ -1,13 +1,15 @@
 package main.lwjglb.engine.scene;
+    import org.joml.Vector3f;
     import org.joml.Vector4f;
     import org.lwjgl.PointerBuffer;
     import org.lwjgl.assimp.*;
     import org.lwjgl.system.MemoryStack;
+    import org.lwjgl.system.MemoryUtil;
 
     import main.lwjglb.engine.graph.*;
     
     import java.io.File;
-    import java.nio.IntBuffer;
+    import java.nio.*;
     import java.util.*;
 
     import static org.lwjgl.assimp.Assimp.*;
@@ -22,6 +24,14 @@ package main.lwjglb.engine.scene;
      *                       corrected to math OpenGL coord system. Do not use this flag if model has anim. info will be removed
      */
 public class ModelLoader {
+    public static final int DEFAULT_FLAGS = aiProcess_GenSmoothNormals | aiProcess_JoinIdenticalVertices |
+            aiProcess_Triangulate | aiProcess_FixInfacingNormals | aiProcess_CalcTangentSpace | aiProcess_LimitBoneWeights |
+            aiProcess_PreTransformVertices;
+    // Levels of detail generated per mesh: full detail plus up to MAX_LODS - 1 simplified levels
+    public static final int MAX_LODS = 4;
+    private static final float LOD_REDUCTION = 0.5f;
+    private static final float MIN_LOD_SAVING = 0.2f;
+    private static final int MIN_LOD_TRIANGLES = 256;
 
     private ModelLoader(){
         // util class
@@ -32,59 +42,128 @@ public class ModelLoader {
     // additional files and may use the same base path as modelPath.
     // textureCache: Reference to the texture cache to avoid loading the same texture multiple times.
     public static Model loadModel(String modelId, String modelPath, TextureCache textureCache) {
-        return loadModel(modelId, modelPath, textureCache, aiProcess_GenSmoothNormals | aiProcess_JoinIdenticalVertices |
-        aiProcess_Triangulate | aiProcess_FixInfacingNormals | aiProcess_CalcTangentSpace | aiProcess_LimitBoneWeights |
-        aiProcess_PreTransformVertices);
+        return loadModel(modelId, modelPath, textureCache, null);
+    }
+
+    // meshArena: If not null, meshes are packed into the arena's shared buffers instead of getting their own
+    public static Model loadModel(String modelId, String modelPath, TextureCache textureCache, MeshArena meshArena) {
+        return loadModel(modelId, modelPath, textureCache, DEFAULT_FLAGS, meshArena);
     }
 
     public static Model loadModel(String modelId, String modelPath, TextureCache textureCache, int flags){
+        return loadModel(modelId, modelPath, textureCache, flags, null);
+    }
+
+    public static Model loadModel(String modelId, String modelPath, TextureCache textureCache, int flags,
+                                  MeshArena meshArena){
+        return loadModel(modelId, modelPath, textureCache, flags, meshArena, false);
+    }
+
+    // generateLods: If true, simplified levels of detail are generated for the meshes (see loadModelData)
+    public static Model loadModel(String modelId, String modelPath, TextureCache textureCache, int flags,
+                                  MeshArena meshArena, boolean generateLods){
+        ModelData modelData = loadModelData(modelPath, flags, generateLods);
+        for (Material material : modelData.materials()){
+            if (material.getTexturePath() != null){
+                textureCache.createTexture(material.getTexturePath());
+            }
+        }
+        for (MeshData meshData : modelData.meshes()){
+            modelData.materials().get(meshData.materialIdx()).getMeshList().add(createMesh(meshData, meshArena));
+        }
+        return new Model(modelId, modelData.materials());
+    }
+
+    // Uploads mesh data to the GPU and frees it. Must be called from the thread owning the GL context
+    public static Mesh createMesh(MeshData meshData, MeshArena meshArena){
+        try{
+            // Meshes whose texture coords do not fit in half floats keep their own full precision buffers
+            if (meshArena != null && MeshArena.canPack(meshData.textCoords())){
+                return meshArena.allocate(meshData.positions(), meshData.textCoords(), meshData.indices(),
+                        meshData.lodIndexCounts(), meshData.aabbMin(), meshData.aabbMax());
+            }
+            return new Mesh(meshData.positions(), meshData.textCoords(), meshData.indices(), meshData.lodIndexCounts(),
+                    meshData.aabbMin(), meshData.aabbMax());
+        }
+        finally{
+            meshData.free();
+        }
+    }
+
+    // CPU side of loading a model: materials and vertex data, from the model cache if it holds a valid entry,
+    // otherwise imported with Assimp and then cached. Does not touch GL (the materials' textures are not loaded
+    // and their mesh lists are empty), so it can run on any thread.
+    public static ModelData loadModelData(String modelPath, int flags){
+        return loadModelData(modelPath, flags, false);
+    }
+
+    // generateLods: If true, meshes get simplified levels of detail after the full detail one. Simplification
+    // is costly, so it is opt in, for models detailed enough to be worth it; the result is cached with the model
+    public static ModelData loadModelData(String modelPath, int flags, boolean generateLods){
         File file = new File(modelPath);
         if (!file.exists()){
             throw new RuntimeException("Model path does not exist [" + modelPath+"]");
         }
-        String modelDir = file.getParent();
+        ModelData modelData = ModelCache.load(modelPath, flags, generateLods);
+        if (modelData == null){
+            modelData = importModelData(modelPath, flags, generateLods);
+            ModelCache.store(modelPath, flags, generateLods, modelData);
+        }
+        return modelData;
+    }
+
+    // Imports a model with Assimp, bypassing the model cache. Does not touch GL
+    public static ModelData importModelData(String modelPath, int flags){
+        return importModelData(modelPath, flags, false);
+    }
+
+    public static ModelData importModelData(String modelPath, int flags, boolean generateLods){
+        String modelDir = new File(modelPath).getParent();
 
         AIScene aiScene = aiImportFile(modelPath, flags);
         if (aiScene == null){
             throw new RuntimeException("Error loading model [modelPath: "+modelPath+"]");
         }
 
-        // Process materials contained in the model
-        int numMaterials = aiScene.mNumMaterials();
-        List<Material> materialList = new ArrayList<>();
-        for (int i = 0; i < numMaterials; i++){
-            AIMaterial aiMaterial = AIMaterial.create(aiScene.mMaterials().get(i));
-            materialList.add(processMaterial(aiMaterial, modelDir, textureCache));
-        }
-
-        // Process meshes contained in model
-        // Process meshes after materials to link them bc a model can define several meshes and each of them can use one of the
-        // materials defined for the model.
-        int numMeshes = aiScene.mNumMeshes();
-        // buffer is like C pointers -> point to a memory region. Need to know the type of data before hand to process them
-        PointerBuffer aiMeshes = aiScene.mMeshes();
-        Material defaultMaterial = new Material();
-        for (int i=0; i < numMeshes; i++){
-            AIMesh aiMesh = AIMesh.create(aiMeshes.get(i));
-            Mesh mesh = processMesh(aiMesh);
-            int materialIdx = aiMesh.mMaterialIndex();
-            Material material;
-            if (materialIdx >= 0 && materialIdx < materialList.size()){
-                material = materialList.get(materialIdx);
-            } else {
-                material = defaultMaterial;
+        try{
+            // Process materials contained in the model
+            int numMaterials = aiScene.mNumMaterials();
+            List<Material> materialList = new ArrayList<>();
+            for (int i = 0; i < numMaterials; i++){
+                AIMaterial aiMaterial = AIMaterial.create(aiScene.mMaterials().get(i));
+                materialList.add(processMaterial(aiMaterial, modelDir));
+            }
+
+            // Process meshes contained in model
+            // Process meshes after materials to link them bc a model can define several meshes and each of them can use one of the
+            // materials defined for the model.
+            int numMeshes = aiScene.mNumMeshes();
+            // buffer is like C pointers -> point to a memory region. Need to know the type of data before hand to process them
+            PointerBuffer aiMeshes = aiScene.mMeshes();
+            List<MeshData> meshDataList = new ArrayList<>();
+            // One simplifier for all the meshes, so its working arrays are reused
+            MeshSimplifier simplifier = generateLods ? new MeshSimplifier() : null;
+            int defaultMaterialIdx = -1;
+            for (int i=0; i < numMeshes; i++){
+                AIMesh aiMesh = AIMesh.create(aiMeshes.get(i));
+                int materialIdx = aiMesh.mMaterialIndex();
+                if (materialIdx < 0 || materialIdx >= numMaterials){
+                    if (defaultMaterialIdx < 0){
+                        defaultMaterialIdx = materialList.size();
+                        materialList.add(new Material());
+                    }
+                    materialIdx = defaultMaterialIdx;
+                }
+                meshDataList.add(processMesh(aiMesh, materialIdx, simplifier));
             }
-            material.getMeshList().add(mesh);
+            return new ModelData(materialList, meshDataList);
         }
-        
-        if (!defaultMaterial.getMeshList().isEmpty()){
-            materialList.add(defaultMaterial);
+        finally{
+            aiReleaseImport(aiScene);
         }
-
-        return new Model(modelId, materialList);
     }
 
-    private static Material processMaterial(AIMaterial aiMaterial, String modelDir, TextureCache textureCache){
+    private static Material processMaterial(AIMaterial aiMaterial, String modelDir){
         Material material = new Material();
         try (MemoryStack stack = MemoryStack.stackPush()){
             AIColor4D color = AIColor4D.create();
@@ -103,65 +182,130 @@ public class ModelLoader {
             String texturePath = aiTexturePath.dataString();
             if (texturePath != null && texturePath.length() > 0){
                 material.setTexturePath(modelDir + File.separator + new File(texturePath).getName());
-                textureCache.createTexture(material.getTexturePath());
                 material.setDiffuseColor(Material.DEFAULT_COLOR);
             }
             return material;
         }
     }
 
-    private static Mesh processMesh(AIMesh aiMesh){
-        float[] vertices = processVertices(aiMesh);
-        float[] textCoords = processTextCoords(aiMesh);
-        int[] indices = processIndices(aiMesh);
+    // Copies the mesh data straight from Assimp's native memory into off heap buffers, without intermediate
+    // Java arrays or per element wrapper objects. simplifier: generates the levels of detail, none if null
+    private static MeshData processMesh(AIMesh aiMesh, int materialIdx, MeshSimplifier simplifier){
+        FloatBuffer vertices = processVertices(aiMesh);
+        FloatBuffer textCoords = null;
+        IntBuffer indices = null;
+        int[] lodIndexCounts;
+        try{
+            textCoords = processTextCoords(aiMesh);
+            indices = processIndices(aiMesh);
 
-        // Texture coords may not have been populated. Need empty slots
-        if (textCoords.length == 0){
-            int numElements = (vertices.length/3) *2;
-            textCoords = new float[numElements];
+            // Append the simplified levels of detail after the full detail indices
+            List<int[]> lods = simplifier != null ? generateLods(simplifier, vertices, indices) : List.of();
+            lodIndexCounts = new int[lods.size() + 1];
+            lodIndexCounts[0] = indices.remaining();
+            int numIndices = lodIndexCounts[0];
+            for (int i = 0; i < lods.size(); i++){
+                lodIndexCounts[i + 1] = lods.get(i).length;
+                numIndices += lods.get(i).length;
+            }
+            if (!lods.isEmpty()){
+                indices = MemoryUtil.memRealloc(indices, numIndices);
+                indices.position(lodIndexCounts[0]).limit(numIndices);
+                for (int[] lod : lods){
+                    indices.put(lod);
+                }
+                indices.flip();
+            }
+        }
+        catch (RuntimeException | OutOfMemoryError excp){
+            MemoryUtil.memFree(vertices);
+            MemoryUtil.memFree(textCoords);
+            MemoryUtil.memFree(indices);
+            throw excp;
         }
-        return new Mesh(vertices, textCoords, indices);
+
+        // Local bounding box, used to cull entities of this model that are outside the view frustum
+        Vector3f aabbMin = new Vector3f();
+        Vector3f aabbMax = new Vector3f();
+        Mesh.calcAabb(vertices, aabbMin, aabbMax);
+        return new MeshData(vertices, textCoords, indices, lodIndexCounts, aabbMin, aabbMax, materialIdx, true);
     }
 
-    private static int[] processIndices(AIMesh aiMesh){
-        List<Integer> indices = new ArrayList<>();
-        int numFaces = aiMesh.mNumFaces();
-        AIFace.Buffer aiFaces = aiMesh.mFaces();
-        for (int i =0; i <numFaces; i++){
-            AIFace aiFace = aiFaces.get(i);
-            IntBuffer buffer = aiFace.mIndices();
-            while (buffer.remaining() > 0){
-                indices.add(buffer.get());
+    // Simplified index lists for levels of detail 1, 2..., each made from the previous one with LOD_REDUCTION of
+    // its triangles. Stops at MAX_LODS levels, or when simplification no longer removes MIN_LOD_SAVING of them
+    // (flat or heavily bordered meshes). Meshes under MIN_LOD_TRIANGLES get none
+    private static List<int[]> generateLods(MeshSimplifier simplifier, FloatBuffer vertices, IntBuffer indices){
+        List<int[]> lods = new ArrayList<>();
+        IntBuffer previous = indices;
+        while (lods.size() + 1 < MAX_LODS && previous.remaining() / 3 >= MIN_LOD_TRIANGLES){
+            int[] lod = simplifier.simplify(vertices, previous, (int) (previous.remaining() * LOD_REDUCTION) / 3 * 3);
+            if (lod.length > previous.remaining() * (1 - MIN_LOD_SAVING)){
+                break;
             }
+            lods.add(lod);
+            previous = IntBuffer.wrap(lod);
+        }
+        return lods;
+    }
+
+    private static IntBuffer processIndices(AIMesh aiMesh){
+        int numFaces = aiMesh.mNumFaces();
+        long faces = aiMesh.mFaces().address();
+        int numIndices = 0;
+        for (int i = 0; i < numFaces; i++){
+            numIndices += AIFace.nmNumIndices(faces + (long) i * AIFace.SIZEOF);
         }
-        return indices.stream().mapToInt(Integer::intValue).toArray();
+        IntBuffer indices = MemoryUtil.memAllocInt(numIndices);
+        long dst = MemoryUtil.memAddress(indices);
+        for (int i = 0; i < numFaces; i++){
+            long face = faces + (long) i * AIFace.SIZEOF;
+            long bytes = (long) AIFace.nmNumIndices(face) * Integer.BYTES;
+            MemoryUtil.memCopy(MemoryUtil.memGetAddress(face + AIFace.MINDICES), dst, bytes);
+            dst += bytes;
+        }
+        return indices;
     }
 
-    private static float[] processTextCoords(AIMesh aiMesh){
+    private static FloatBuffer processTextCoords(AIMesh aiMesh){
+        int numVertices = aiMesh.mNumVertices();
         AIVector3D.Buffer buffer = aiMesh.mTextureCoords(0);
         if (buffer == null){
-            return new float[]{};
+            // Texture coords may not have been populated. Need empty slots
+            return MemoryUtil.memCallocFloat(numVertices * 2);
         }
-        float[] data = new float[buffer.remaining() * 2];
-        int pos = 0;
-        while (buffer.remaining() > 0){
-            AIVector3D textCoord = buffer.get();
-            data[pos++] = textCoord.x();
-            data[pos++] = 1 - textCoord.y();
+        FloatBuffer data = MemoryUtil.memAllocFloat(numVertices * 2);
+        // Assimp stores texture coords as x, y, z triplets; keep x and y, flipping y
+        FloatBuffer src = MemoryUtil.memFloatBuffer(buffer.address(), numVertices * 3);
+        for (int i = 0; i < numVertices; i++){
+            data.put(i * 2, src.get(i * 3));
+            data.put(i * 2 + 1, 1 - src.get(i * 3 + 1));
         }
         return data;
     }
 
-    private static float[] processVertices(AIMesh aiMesh){
-        AIVector3D.Buffer buffer = aiMesh.mVertices();
-        float[] data = new float[buffer.remaining() * 3];
-        int pos = 0;
-        while (buffer.remaining() > 0){
-            AIVector3D textCoord = buffer.get();
-            data[pos++] = textCoord.x();
-            data[pos++] = textCoord.y();
-            data[pos++] = textCoord.z();
-        }
+    private static FloatBuffer processVertices(AIMesh aiMesh){
+        int numVertices = aiMesh.mNumVertices();
+        FloatBuffer data = MemoryUtil.memAllocFloat(numVertices * 3);
+        // AIVector3D is three packed floats, the same layout as the positions buffer
+        MemoryUtil.memCopy(aiMesh.mVertices().address(), MemoryUtil.memAddress(data), (long) numVertices * AIVector3D.SIZEOF);
         return data;
     }
+
+    // Vertex data of a mesh ready to upload, in direct buffers. materialIdx indexes the materials of the owning
+    // ModelData. offHeap: buffers were allocated with MemoryUtil and must be released with free(); otherwise they
+    // are views of a mapped cache file, released by the garbage collector
+    // lodIndexCounts: # of indices of each level of detail, stored back to back in indices
+    public record MeshData(FloatBuffer positions, FloatBuffer textCoords, IntBuffer indices, int[] lodIndexCounts,
+                           Vector3f aabbMin, Vector3f aabbMax, int materialIdx, boolean offHeap) {
+        public void free(){
+            if (offHeap){
+                MemoryUtil.memFree(positions);
+                MemoryUtil.memFree(textCoords);
+                MemoryUtil.memFree(indices);
+            }
+        }
+    }
+
+    public record ModelData(List<Material> materials, List<MeshData> meshes) {
+    }
 }
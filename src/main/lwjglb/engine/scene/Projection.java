@@ -4,8 +4,8 @@ import org.joml.Matrix4f; //motherfucker YES YES YES!~!
 
 public class Projection {
     private static final float FOV = (float) Math.toRadians(60.0f);
-    private static final float Z_FAR = 1000.f;
-    private static final float Z_NEAR = 0.01f;
+    public static final float Z_FAR = 1000.f;
+    public static final float Z_NEAR = 0.01f;
 
     private Matrix4f projMatrix;
 
@@ -4,27 +4,47 @@ import main.lwjglb.engine.graph.*;
 import java.util.*;
 /**
  * Hold 3D scene values (models, lights, camera, etc)
+ * Entities are indexed by an EntityRegistry: addEntity returns a handle that stays valid until the entity is
+ * removed, and adding, removing and looking entities up by handle or id take constant time.
+ * Each scene owns the transform store of its entities, which must be created with it (getTransformStore).
  */
 public class Scene {
+    private AsyncModelLoader asyncModelLoader;
+    private BoundingVolumeHierarchy bvh;
     private Camera camera;
+    private EntityRegistry entityRegistry;
+    private MeshArena meshArena;
     private Map<String, Model> modelMap;
     private Projection projection;
     private TextureCache textureCache;
+    private TransformStore transformStore;
 
     public Scene(int width, int height){
         modelMap = new HashMap<>();
         projection = new Projection(width, height);
         textureCache = new TextureCache();
+        meshArena = new MeshArena();
+        asyncModelLoader = new AsyncModelLoader(textureCache, meshArena);
         camera = new Camera();
+        bvh = new BoundingVolumeHierarchy();
+        entityRegistry = new EntityRegistry();
+        transformStore = new TransformStore();
     }
     
-    public void addEntity(Entity entity){
+    // Adds the entity to the scene, under its model, and returns its handle. Its id must be unique in the scene
+    public long addEntity(Entity entity){
         String modelId = entity.getModelId();
         Model model = modelMap.get(modelId);
         if (model == null){
             throw new RuntimeException("Could not find model ["+modelId+"]");
         }
-        model.getEntitiesList().add(entity);
+        if (entity.getTransformStore() != transformStore){
+            throw new RuntimeException("Entity ["+entity.getId()+"] does not belong to the scene transform store");
+        }
+        long handle = entityRegistry.add(entity, model);
+        entity.setLocalBounds(model.getAabbMin(), model.getAabbMax());
+        bvh.insert(entity);
+        return handle;
     }
 
     // For 2D stuf
@@ -32,18 +52,59 @@ public class Scene {
     //    meshMap.put(meshId, mesh);
     //}
 
+    // Adds the model, taking a texture cache reference for each of its materials
     public void addModel(Model model){
-        modelMap.put(model.getId(), model);
+        Model previous = modelMap.put(model.getId(), model);
+        if (previous != null){
+            releaseTextures(previous);
+        }
+        for (Material material : model.getMaterialList()){
+            textureCache.acquire(material.getTexturePath());
+        }
+    }
+
+    // Starts a fixed update step, saving the transforms to interpolate from
+    public void beginStep(){
+        transformStore.beginStep();
     }
 
     public void cleanup(){
+        asyncModelLoader.cleanup();
         modelMap.values().stream().forEach(Model::cleanup);
+        meshArena.cleanup();
+        textureCache.cleanup();
+    }
+
+    public AsyncModelLoader getAsyncModelLoader(){
+        return asyncModelLoader;
+    }
+
+    public BoundingVolumeHierarchy getBvh(){
+        return bvh;
     }
 
     public Camera getCamera(){
         return camera;
     }
 
+    // Entity of the handle, or null if it was removed
+    public Entity getEntity(long handle){
+        return entityRegistry.get(handle);
+    }
+
+    // Entity with the id, or null if there is none
+    public Entity getEntity(String id){
+        return entityRegistry.get(id);
+    }
+
+    public EntityRegistry getEntityRegistry(){
+        return entityRegistry;
+    }
+
+    public MeshArena getMeshArena(){
+        return meshArena;
+    }
+
     public Map<String, Model> getModelMap(){
         return modelMap;
     }
@@ -56,7 +117,76 @@ public class Scene {
         return textureCache;
     }
 
+    public TransformStore getTransformStore(){
+        return transformStore;
+    }
+
+    // Blends the entity transforms between the start of the current step and now, for rendering.
+    // alpha: fraction of the step elapsed, in [0, 1]
+    public void interpolateTransforms(float alpha){
+        transformStore.interpolate(alpha);
+    }
+
+    private void releaseTextures(Model model){
+        for (Material material : model.getMaterialList()){
+            textureCache.release(material.getTexturePath());
+        }
+    }
+
+    // Removes the entity of the handle from the scene and frees its transform, which children attached to it
+    // keep as local. Using the entity's transform afterwards throws. Returns false if the handle was already removed
+    public boolean removeEntity(long handle){
+        Entity entity = entityRegistry.remove(handle);
+        if (entity == null){
+            return false;
+        }
+        bvh.remove(entity);
+        entity.releaseTransform();
+        return true;
+    }
+
+    // Removes the model and its entities and frees its meshes. Its textures stay cached, but become the first
+    // candidates for eviction if no other model uses them
+    public void removeModel(String modelId){
+        Model model = modelMap.remove(modelId);
+        if (model == null){
+            return;
+        }
+        for (Entity entity : model.getEntitiesList()){
+            bvh.remove(entity);
+            entity.releaseTransform();
+        }
+        entityRegistry.removeAll(model);
+        releaseTextures(model);
+        model.cleanup();
+    }
+
     public void resize(int width, int height){
         projection.updateProjMatrix(width, height);
     }
+
+    // Transform propagation stage, run by the engine before rendering. Recomputes only the matrices of the
+    // entities changed since the last run and refreshes their bounds in the hierarchy
+    public void updateTransforms(){
+        int count = transformStore.updateDirty();
+        int[] handles = transformStore.getDirtyHandles();
+        for (int i = 0; i < count; i++){
+            Entity entity = transformStore.getOwner(handles[i]);
+            if (entity != null && entity.getBvh() == bvh){
+                bvh.update(entity);
+            }
+        }
+        transformStore.clearDirty();
+    }
+
+    // Recomputes the model matrix of every entity in one pass over the transform store, then refreshes
+    // their bounds in the hierarchy. Cheaper than calling Entity.updateModelMatrix on each of them
+    public void updateModelMatrices(){
+        transformStore.updateModelMatrices();
+        for (Model model : modelMap.values()){
+            for (Entity entity : model.getEntitiesList()){
+                bvh.update(entity);
+            }
+        }
+    }
 }
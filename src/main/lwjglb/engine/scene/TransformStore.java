@@ -0,0 +1,504 @@
+package main.lwjglb.engine.scene;
+
+import org.joml.*;
+
+import java.util.Arrays;
+import java.util.concurrent.*;
+/**
+ * Structure of arrays storage for entity transforms.
+ * Positions, rotations, scales and model matrices of all entities live in contiguous primitive arrays
+ * indexed by the entity handle, instead of in separate heap objects per entity. Updating all the matrices is a
+ * linear walk over these arrays, and the matrices array can be copied to the GPU as is (16 floats per entity,
+ * column major, same layout as Matrix4f.get).
+ * Entity is a thin handle over a slot in this store. Released slots are reused by later allocations.
+ * Setters mark the slot dirty. updateDirty() recomputes only the dirty matrices, splitting them in batches
+ * over a ForkJoinPool when there are enough of them to pay for it.
+ *
+ * Interpolation: the engine updates at a fixed timestep and renders in between, so the render matrices blend the
+ * matrices at the start of the current step (previous) with the latest ones. beginStep() saves the previous
+ * matrices, and only handles moved since then are blended by interpolate(). Matrices are blended element wise,
+ * which is exact for translation and scale and close enough for the small rotations of one step.
+ * A new transform is not blended until it has moved once, so freshly placed entities do not slide from the origin.
+ *
+ * Hierarchy: a transform can have a parent, in which case its position, rotation and scale are relative to the
+ * parent and its matrix is the parent's matrix times its local one. Transforms that are part of a hierarchy (have
+ * a parent or children) are laid out in depth first order in a flat array, so every subtree is a contiguous range
+ * of it that starts with its root. updateDirty recomputes each dirty subtree with a linear walk over its range,
+ * parents before children, and adds the descendants to the dirty list; a move costs the size of its subtree, and
+ * transforms outside any hierarchy take the flat (parallel) path as before. setParent and release only flag the
+ * order, which is rebuilt at the next updateDirty.
+ */
+public class TransformStore {
+    private static final int BATCH_SIZE = 1024;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int PARALLEL_THRESHOLD = 4 * BATCH_SIZE;
+    private boolean[] dirty;
+    private int dirtyCount;
+    private int[] dirtyHandles;
+    private int[] firstChildren;
+    private int[] freeSlots;
+    private int freeCount;
+    private boolean[] fresh;
+    private float[] matrices;
+    private boolean[] moved;
+    private int movedCount;
+    private int[] movedHandles;
+    private int[] nextSiblings;
+    private int[] order;
+    private int orderCount;
+    private boolean orderDirty;
+    private int[] orderIndices;
+    private Entity[] owners;
+    private int[] parents;
+    private float[] positions;
+    private float[] prevMatrices;
+    private float[] renderMatrices;
+    private float[] rotations;
+    private float[] scales;
+    // Depth first walk stack in rebuildOrder, dirty subtree roots in updateDirty
+    private int[] scratch;
+    private int size; // Highest slot ever used + 1
+    private int[] subtreeSizes;
+
+    public TransformStore(){
+        dirty = new boolean[INITIAL_CAPACITY];
+        dirtyHandles = new int[INITIAL_CAPACITY];
+        firstChildren = new int[INITIAL_CAPACITY];
+        freeSlots = new int[INITIAL_CAPACITY];
+        fresh = new boolean[INITIAL_CAPACITY];
+        moved = new boolean[INITIAL_CAPACITY];
+        movedHandles = new int[INITIAL_CAPACITY];
+        nextSiblings = new int[INITIAL_CAPACITY];
+        order = new int[INITIAL_CAPACITY];
+        orderIndices = new int[INITIAL_CAPACITY];
+        owners = new Entity[INITIAL_CAPACITY];
+        parents = new int[INITIAL_CAPACITY];
+        matrices = new float[INITIAL_CAPACITY * 16];
+        prevMatrices = new float[INITIAL_CAPACITY * 16];
+        renderMatrices = new float[INITIAL_CAPACITY * 16];
+        positions = new float[INITIAL_CAPACITY * 3];
+        rotations = new float[INITIAL_CAPACITY * 4];
+        scales = new float[INITIAL_CAPACITY];
+        scratch = new int[INITIAL_CAPACITY];
+        subtreeSizes = new int[INITIAL_CAPACITY];
+    }
+
+    // Returns the handle of a new identity transform owned by entity
+    public int allocate(Entity owner){
+        int handle;
+        if (freeCount > 0){
+            handle = freeSlots[--freeCount];
+        }
+        else{
+            if (size == scales.length){
+                grow(scales.length * 2);
+            }
+            handle = size++;
+        }
+        owners[handle] = owner;
+        parents[handle] = -1;
+        firstChildren[handle] = -1;
+        nextSiblings[handle] = -1;
+        orderIndices[handle] = -1;
+        setPosition(handle, 0, 0, 0);
+        setRotation(handle, 0, 0, 0, 1);
+        scales[handle] = 1;
+        updateModelMatrix(handle);
+        System.arraycopy(matrices, handle * 16, prevMatrices, handle * 16, 16);
+        System.arraycopy(matrices, handle * 16, renderMatrices, handle * 16, 16);
+        fresh[handle] = true;
+        return handle;
+    }
+
+    // Starts a fixed update step: the current matrices of the handles moved in the last step become their
+    // previous (and, until they move again, render) matrices
+    public void beginStep(){
+        for (int i = 0; i < movedCount; i++){
+            int m = movedHandles[i] * 16;
+            System.arraycopy(matrices, m, prevMatrices, m, 16);
+            System.arraycopy(matrices, m, renderMatrices, m, 16);
+            moved[movedHandles[i]] = false;
+        }
+        movedCount = 0;
+    }
+
+    // Clears the dirty list returned by getDirtyHandles. Call it once the updated entities have been processed
+    public void clearDirty(){
+        for (int i = 0; i < dirtyCount; i++){
+            dirty[dirtyHandles[i]] = false;
+        }
+        dirtyCount = 0;
+    }
+
+    // Removes handle from its parent's children, if it has a parent
+    private void detach(int handle){
+        int parent = parents[handle];
+        if (parent < 0){
+            return;
+        }
+        if (firstChildren[parent] == handle){
+            firstChildren[parent] = nextSiblings[handle];
+        }
+        else{
+            int sibling = firstChildren[parent];
+            while (nextSiblings[sibling] != handle){
+                sibling = nextSiblings[sibling];
+            }
+            nextSiblings[sibling] = nextSiblings[handle];
+        }
+        parents[handle] = -1;
+        nextSiblings[handle] = -1;
+        orderDirty = true;
+    }
+
+    // Handles whose matrices were recomputed by the last updateDirty, valid until clearDirty
+    public int[] getDirtyHandles(){
+        return dirtyHandles;
+    }
+
+    public Entity getOwner(int handle){
+        return owners[handle];
+    }
+
+    public Matrix4f getModelMatrix(int handle, Matrix4f dest){
+        return dest.set(matrices, handle * 16);
+    }
+
+    // Backing array of model matrices, 16 floats per handle starting at handle * 16
+    public float[] getMatrices(){
+        return matrices;
+    }
+
+    // Matrices to draw with, as blended by the last interpolate call; same layout as getMatrices
+    public float[] getRenderMatrices(){
+        return renderMatrices;
+    }
+
+    // Parent of the handle, or -1 if it has none
+    public int getParent(int handle){
+        return parents[handle];
+    }
+
+    public Vector3f getPosition(int handle, Vector3f dest){
+        int p = handle * 3;
+        return dest.set(positions[p], positions[p + 1], positions[p + 2]);
+    }
+
+    public Quaternionf getRotation(int handle, Quaternionf dest){
+        int r = handle * 4;
+        return dest.set(rotations[r], rotations[r + 1], rotations[r + 2], rotations[r + 3]);
+    }
+
+    public float getScale(int handle){
+        return scales[handle];
+    }
+
+    public int getSize(){
+        return size;
+    }
+
+    private void grow(int capacity){
+        dirty = Arrays.copyOf(dirty, capacity);
+        dirtyHandles = Arrays.copyOf(dirtyHandles, capacity);
+        firstChildren = Arrays.copyOf(firstChildren, capacity);
+        fresh = Arrays.copyOf(fresh, capacity);
+        moved = Arrays.copyOf(moved, capacity);
+        movedHandles = Arrays.copyOf(movedHandles, capacity);
+        nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+        order = Arrays.copyOf(order, capacity);
+        orderIndices = Arrays.copyOf(orderIndices, capacity);
+        owners = Arrays.copyOf(owners, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        matrices = Arrays.copyOf(matrices, capacity * 16);
+        prevMatrices = Arrays.copyOf(prevMatrices, capacity * 16);
+        renderMatrices = Arrays.copyOf(renderMatrices, capacity * 16);
+        positions = Arrays.copyOf(positions, capacity * 3);
+        rotations = Arrays.copyOf(rotations, capacity * 4);
+        scales = Arrays.copyOf(scales, capacity);
+        scratch = Arrays.copyOf(scratch, capacity);
+        subtreeSizes = Arrays.copyOf(subtreeSizes, capacity);
+    }
+
+    // Blends the previous and current matrices of the handles moved in this step into the render matrices.
+    // alpha: fraction of the step elapsed, in [0, 1]
+    public void interpolate(float alpha){
+        for (int i = 0; i < movedCount; i++){
+            int m = movedHandles[i] * 16;
+            for (int j = m; j < m + 16; j++){
+                renderMatrices[j] = prevMatrices[j] + (matrices[j] - prevMatrices[j]) * alpha;
+            }
+        }
+    }
+
+    private void markDirty(int handle){
+        if (!dirty[handle]){
+            dirty[handle] = true;
+            dirtyHandles[dirtyCount++] = handle;
+        }
+    }
+
+    // Frees the slot. Its children become roots, keeping their local transforms
+    public void release(int handle){
+        detach(handle);
+        while (firstChildren[handle] >= 0){
+            int child = firstChildren[handle];
+            detach(child);
+            markDirty(child);
+        }
+        owners[handle] = null;
+        if (freeCount == freeSlots.length){
+            freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+        }
+        freeSlots[freeCount++] = handle;
+    }
+
+    // Lays the transforms that are part of a hierarchy out in depth first order, one tree after the other, and
+    // records for each of them its index in the order and the size of its subtree
+    private void rebuildOrder(){
+        for (int i = 0; i < orderCount; i++){
+            orderIndices[order[i]] = -1;
+        }
+        orderCount = 0;
+        for (int root = 0; root < size; root++){
+            if (parents[root] >= 0 || firstChildren[root] < 0){
+                continue;
+            }
+            // Iterative preorder walk: children are pushed on a stack, so each subtree is emitted in one piece
+            int stackSize = 0;
+            scratch[stackSize++] = root;
+            while (stackSize > 0){
+                int handle = scratch[--stackSize];
+                orderIndices[handle] = orderCount;
+                order[orderCount++] = handle;
+                subtreeSizes[handle] = 1;
+                for (int child = firstChildren[handle]; child >= 0; child = nextSiblings[child]){
+                    scratch[stackSize++] = child;
+                }
+            }
+        }
+        // Children come after their parents, so a reverse walk adds up the subtree sizes bottom up
+        for (int i = orderCount - 1; i >= 0; i--){
+            int parent = parents[order[i]];
+            if (parent >= 0){
+                subtreeSizes[parent] += subtreeSizes[order[i]];
+            }
+        }
+        orderDirty = false;
+    }
+
+    // Makes parent (-1 for none) the parent of handle. Its position, rotation and scale become relative to the
+    // parent's transform, and its matrix follows the parent's from the next updateDirty
+    public void setParent(int handle, int parent){
+        if (parent == parents[handle]){
+            return;
+        }
+        for (int ancestor = parent; ancestor >= 0; ancestor = parents[ancestor]){
+            if (ancestor == handle){
+                throw new RuntimeException("Transform [" + handle + "] cannot be a child of its descendant [" +
+                        parent + "]");
+            }
+        }
+        detach(handle);
+        if (parent >= 0){
+            parents[handle] = parent;
+            nextSiblings[handle] = firstChildren[parent];
+            firstChildren[parent] = handle;
+        }
+        orderDirty = true;
+        markDirty(handle);
+    }
+
+    public void setPosition(int handle, float x, float y, float z){
+        int p = handle * 3;
+        positions[p] = x;
+        positions[p + 1] = y;
+        positions[p + 2] = z;
+        markDirty(handle);
+    }
+
+    public void setRotation(int handle, float x, float y, float z, float w){
+        int r = handle * 4;
+        rotations[r] = x;
+        rotations[r + 1] = y;
+        rotations[r + 2] = z;
+        rotations[r + 3] = w;
+        markDirty(handle);
+    }
+
+    public void setScale(int handle, float scale){
+        scales[handle] = scale;
+        markDirty(handle);
+    }
+
+    // Same result as Matrix4f.translationRotateScale, written straight into the matrices array, then multiplied
+    // by the parent's current matrix if there is a parent
+    public void updateModelMatrix(int handle){
+        int p = handle * 3;
+        int r = handle * 4;
+        int m = handle * 16;
+        float qx = rotations[r];
+        float qy = rotations[r + 1];
+        float qz = rotations[r + 2];
+        float qw = rotations[r + 3];
+        float s = scales[handle];
+        float dqx = qx + qx;
+        float dqy = qy + qy;
+        float dqz = qz + qz;
+        float q00 = dqx * qx;
+        float q11 = dqy * qy;
+        float q22 = dqz * qz;
+        float q01 = dqx * qy;
+        float q02 = dqx * qz;
+        float q03 = dqx * qw;
+        float q12 = dqy * qz;
+        float q13 = dqy * qw;
+        float q23 = dqz * qw;
+        matrices[m] = s - (q11 + q22) * s;
+        matrices[m + 1] = (q01 + q23) * s;
+        matrices[m + 2] = (q02 - q13) * s;
+        matrices[m + 3] = 0;
+        matrices[m + 4] = (q01 - q23) * s;
+        matrices[m + 5] = s - (q22 + q00) * s;
+        matrices[m + 6] = (q12 + q03) * s;
+        matrices[m + 7] = 0;
+        matrices[m + 8] = (q02 + q13) * s;
+        matrices[m + 9] = (q12 - q03) * s;
+        matrices[m + 10] = s - (q11 + q00) * s;
+        matrices[m + 11] = 0;
+        matrices[m + 12] = positions[p];
+        matrices[m + 13] = positions[p + 1];
+        matrices[m + 14] = positions[p + 2];
+        matrices[m + 15] = 1;
+        if (parents[handle] >= 0){
+            mulParent(parents[handle] * 16, m);
+        }
+    }
+
+    // matrices[m] = matrices[pm] * matrices[m], both affine (last row 0, 0, 0, 1)
+    private void mulParent(int pm, int m){
+        for (int c = m; c < m + 16; c += 4){
+            float x = matrices[c];
+            float y = matrices[c + 1];
+            float z = matrices[c + 2];
+            float w = matrices[c + 3];
+            matrices[c] = matrices[pm] * x + matrices[pm + 4] * y + matrices[pm + 8] * z + matrices[pm + 12] * w;
+            matrices[c + 1] = matrices[pm + 1] * x + matrices[pm + 5] * y + matrices[pm + 9] * z + matrices[pm + 13] * w;
+            matrices[c + 2] = matrices[pm + 2] * x + matrices[pm + 6] * y + matrices[pm + 10] * z + matrices[pm + 14] * w;
+        }
+    }
+
+    // Records a handle whose matrix was recomputed, to be blended by interpolate
+    private void markMoved(int handle){
+        if (fresh[handle]){
+            // First placement: jump there
+            System.arraycopy(matrices, handle * 16, prevMatrices, handle * 16, 16);
+            fresh[handle] = false;
+        }
+        if (!moved[handle]){
+            moved[handle] = true;
+            movedHandles[movedCount++] = handle;
+        }
+    }
+
+    // Recomputes every model matrix in one pass over the arrays. Released slots are recomputed too,
+    // which is cheaper than checking for them. Hierarchies are then walked again in order, so children see their
+    // parents' new matrices. The new matrices are not interpolated
+    public void updateModelMatrices(){
+        for (int i = 0; i < size; i++){
+            updateModelMatrix(i);
+        }
+        if (orderDirty){
+            rebuildOrder();
+        }
+        for (int i = 0; i < orderCount; i++){
+            if (parents[order[i]] >= 0){
+                updateModelMatrix(order[i]);
+            }
+        }
+        System.arraycopy(matrices, 0, prevMatrices, 0, size * 16);
+        System.arraycopy(matrices, 0, renderMatrices, 0, size * 16);
+    }
+
+    // Recomputes the matrices of the transforms changed since the last clearDirty, and of their descendants,
+    // and returns how many. Large dirty sets of transforms outside any hierarchy are split in batches of
+    // BATCH_SIZE run on the common ForkJoinPool. Each slot is written by exactly one task, so the batches need no
+    // synchronization. Dirty subtrees are then walked in order; the descendants are added to the dirty list
+    public int updateDirty(){
+        if (orderDirty){
+            rebuildOrder();
+        }
+        // Split the dirty list: transforms outside any hierarchy stay in it, the others are set aside by order
+        int flatCount = 0;
+        int numSubtrees = 0;
+        for (int i = 0; i < dirtyCount; i++){
+            int handle = dirtyHandles[i];
+            if (orderIndices[handle] < 0){
+                dirtyHandles[flatCount++] = handle;
+            }
+            else{
+                scratch[numSubtrees++] = orderIndices[handle];
+            }
+        }
+        dirtyCount = flatCount;
+        if (dirtyCount < PARALLEL_THRESHOLD){
+            updateRange(0, dirtyCount);
+        }
+        else{
+            ForkJoinPool.commonPool().invoke(new UpdateTask(this, 0, dirtyCount));
+        }
+        updateSubtrees(numSubtrees);
+        for (int i = 0; i < dirtyCount; i++){
+            markMoved(dirtyHandles[i]);
+        }
+        return dirtyCount;
+    }
+
+    // Recomputes the subtrees whose roots' orders are the first count entries of scratch. Subtrees inside an
+    // already covered one are skipped, so each transform is recomputed, and added to the dirty list, once
+    private void updateSubtrees(int count){
+        Arrays.sort(scratch, 0, count);
+        int end = 0;
+        for (int i = 0; i < count; i++){
+            int start = scratch[i];
+            if (start < end){
+                continue;
+            }
+            end = start + subtreeSizes[order[start]];
+            for (int j = start; j < end; j++){
+                int handle = order[j];
+                updateModelMatrix(handle);
+                dirty[handle] = true;
+                dirtyHandles[dirtyCount++] = handle;
+            }
+        }
+    }
+
+    private void updateRange(int from, int to){
+        for (int i = from; i < to; i++){
+            updateModelMatrix(dirtyHandles[i]);
+        }
+    }
+
+    private static final class UpdateTask extends RecursiveAction{
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final transient TransformStore store;
+        private final int to;
+
+        UpdateTask(TransformStore store, int from, int to){
+            this.store = store;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+            if (to - from <= BATCH_SIZE){
+                store.updateRange(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new UpdateTask(store, from, mid), new UpdateTask(store, mid, to));
+        }
+    }
+}
@@ -32,14 +32,15 @@ public class Main implements IAppLogic{
 
 
     // init() simplified. Now using a cube model which uses a wavefront format. No more model data embedded in code yippee!!
+    // Model is loaded in the background; the entity is added to the scene once the model is uploaded
     @Override
     public void init(Window window, Scene scene, Render render){
-        Model cubeModel = ModelLoader.loadModel("cube-model", "resources/models/cube/cube.obj", scene.getTextureCache());
-        scene.addModel(cubeModel);
-
-        cubeEntity = new Entity("cube-entity", cubeModel.getId());
+        cubeEntity = new Entity("cube-entity", "cube-model", scene.getTransformStore());
         cubeEntity.setPosition(0, 0, -2);
-        scene.addEntity(cubeEntity);
+        scene.getAsyncModelLoader().loadModel("cube-model", "resources/models/cube/cube.obj").thenAccept(cubeModel -> {
+            scene.addModel(cubeModel);
+            scene.addEntity(cubeEntity);
+        });
     }
     /** Refined init() for loading more complex models
     @Override
@@ -198,6 +199,5 @@ public class Main implements IAppLogic{
             rotation =0;
         }
         cubeEntity.setRotation(1, 1, 1, (float) Math.toRadians(rotation));
-        cubeEntity.updateModelMatrix();
     }
 }
\ No newline at end of file
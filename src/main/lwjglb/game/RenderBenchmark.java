@@ -0,0 +1,183 @@
+package main.lwjglb.game;
+
+import org.joml.*;
+import main.lwjglb.engine.*;
+import main.lwjglb.engine.graph.*;
+import main.lwjglb.engine.scene.*;
+import org.lwjgl.system.MemoryUtil;
+import org.tinylog.Logger;
+
+import java.lang.Math;
+import java.nio.*;
+import java.util.*;
+
+import static org.lwjgl.glfw.GLFW.*;
+/**
+ * Headless render benchmark: builds a synthetic scene of N models (UV spheres of increasing tessellation, one
+ * color each) times M rotating entities, runs it through the normal Engine / Render path without vsync or frame
+ * cap, and logs the frame time percentiles of K frames after a warm up.
+ * Usage: RenderBenchmark [models] [entities per model] [frames] [--pipelined] [--window]
+ * (--window renders in a visible window instead of headless)
+ */
+public class RenderBenchmark implements IAppLogic {
+    private static final int DEFAULT_ENTITIES = 256;
+    private static final int DEFAULT_FRAMES = 1000;
+    private static final int DEFAULT_MODELS = 16;
+    private static final float SPACING = 3.0f;
+    private static final int WARMUP_FRAMES = 120;
+    private final List<Entity> entities;
+    private final int entitiesPerModel;
+    private int frame;
+    private final long[] frameTimes;
+    private long lastFrameTime;
+    private final int numModels;
+    private float rotation;
+
+    public RenderBenchmark(int numModels, int entitiesPerModel, int numFrames){
+        this.numModels = numModels;
+        this.entitiesPerModel = entitiesPerModel;
+        entities = new ArrayList<>();
+        frameTimes = new long[numFrames];
+    }
+
+    public static void main(String[] args){
+        List<Integer> counts = new ArrayList<>();
+        Window.WindowOptions opts = new Window.WindowOptions();
+        opts.headless = true;
+        for (String arg : args){
+            if (arg.equals("--pipelined")){
+                opts.pipelined = true;
+            }
+            else if (arg.equals("--window")){
+                opts.headless = false;
+            }
+            else{
+                counts.add(Integer.parseInt(arg));
+            }
+        }
+        int numModels = counts.size() > 0 ? counts.get(0) : DEFAULT_MODELS;
+        int entitiesPerModel = counts.size() > 1 ? counts.get(1) : DEFAULT_ENTITIES;
+        int numFrames = counts.size() > 2 ? counts.get(2) : DEFAULT_FRAMES;
+        opts.fps = 0;
+        opts.width = Window.HEADLESS_WIDTH;
+        opts.height = Window.HEADLESS_HEIGHT;
+
+        RenderBenchmark benchmark = new RenderBenchmark(numModels, entitiesPerModel, numFrames);
+        Engine engine = new Engine("jEngine benchmark", opts, benchmark);
+        engine.start();
+    }
+
+    // Logs the frame time percentiles of the recorded frames
+    @Override
+    public void cleanup(){
+        int recorded = Math.max(0, Math.min(frame - WARMUP_FRAMES - 1, frameTimes.length));
+        if (recorded == 0){
+            Logger.info("No frames recorded");
+            return;
+        }
+        long[] sorted = Arrays.copyOf(frameTimes, recorded);
+        Arrays.sort(sorted);
+        long sum = 0;
+        for (long frameTime : sorted){
+            sum += frameTime;
+        }
+        Logger.info(String.format(Locale.ROOT, "%d models x %d entities, %d frames: avg %.3f ms, p50 %.3f ms, " +
+                        "p99 %.3f ms, max %.3f ms", numModels, entitiesPerModel, recorded, millis(sum) / recorded,
+                millis(percentile(sorted, 0.50)), millis(percentile(sorted, 0.99)), millis(sorted[recorded - 1])));
+    }
+
+    // UV sphere of radius 1 centered at the origin, from the north pole (v = 0) to the south pole (v = 1)
+    private static ModelLoader.MeshData createSphere(int rings, int segments, int materialIdx){
+        int numVertices = (rings + 1) * (segments + 1);
+        FloatBuffer positions = MemoryUtil.memAllocFloat(numVertices * 3);
+        FloatBuffer textCoords = MemoryUtil.memAllocFloat(numVertices * 2);
+        IntBuffer indices = MemoryUtil.memAllocInt(rings * segments * 6);
+        for (int r = 0; r <= rings; r++){
+            double phi = Math.PI * r / rings;
+            for (int s = 0; s <= segments; s++){
+                double theta = 2 * Math.PI * s / segments;
+                positions.put((float) (Math.sin(phi) * Math.cos(theta)));
+                positions.put((float) Math.cos(phi));
+                positions.put((float) (Math.sin(phi) * Math.sin(theta)));
+                textCoords.put((float) s / segments);
+                textCoords.put((float) r / rings);
+            }
+        }
+        for (int r = 0; r < rings; r++){
+            for (int s = 0; s < segments; s++){
+                int a = r * (segments + 1) + s;
+                int b = a + segments + 1;
+                // Counter clockwise seen from outside
+                indices.put(a).put(a + 1).put(b);
+                indices.put(a + 1).put(b + 1).put(b);
+            }
+        }
+        positions.flip();
+        textCoords.flip();
+        indices.flip();
+        return new ModelLoader.MeshData(positions, textCoords, indices, new int[]{indices.remaining()},
+                new Vector3f(-1, -1, -1), new Vector3f(1, 1, 1), materialIdx, true);
+    }
+
+    // Models and entities are created directly on the GL thread, so every frame measured draws the full scene.
+    // Entities fill a square grid facing the camera
+    @Override
+    public void init(Window window, Scene scene, Render render){
+        for (int i = 0; i < numModels; i++){
+            Material material = new Material();
+            material.setDiffuseColor(new Vector4f((i * 0.37f) % 1, (i * 0.61f) % 1, (i * 0.83f) % 1, 1));
+            List<Material> materials = new ArrayList<>();
+            materials.add(material);
+            int tessellation = 8 + 4 * (i % 8);
+            material.getMeshList().add(ModelLoader.createMesh(createSphere(tessellation, tessellation * 2, 0),
+                    scene.getMeshArena()));
+            Model model = new Model("model-" + i, materials);
+            model.updateAabb();
+            scene.addModel(model);
+        }
+
+        int total = numModels * entitiesPerModel;
+        int side = (int) Math.ceil(Math.sqrt(total));
+        float halfExtent = (side - 1) * SPACING * 0.5f;
+        for (int i = 0; i < total; i++){
+            Entity entity = new Entity("entity-" + i, "model-" + (i % numModels), scene.getTransformStore());
+            entity.setPosition((i % side) * SPACING - halfExtent, (i / side) * SPACING - halfExtent, -halfExtent * 2);
+            scene.addEntity(entity);
+            entities.add(entity);
+        }
+        scene.getCamera().setPosition(0, 0, 0);
+    }
+
+    // Called once per frame: records the time since the previous call, and closes the window after the last frame
+    @Override
+    public void input(Window window, Scene scene, long diffTimeMillis){
+        long now = System.nanoTime();
+        if (frame > WARMUP_FRAMES && frame - WARMUP_FRAMES <= frameTimes.length){
+            frameTimes[frame - WARMUP_FRAMES - 1] = now - lastFrameTime;
+        }
+        lastFrameTime = now;
+        frame++;
+        if (frame > WARMUP_FRAMES + frameTimes.length){
+            glfwSetWindowShouldClose(window.getWindowHandle(), true);
+        }
+    }
+
+    private static double millis(long nanos){
+        return nanos / 1_000_000.0;
+    }
+
+    // Nearest rank percentile of sorted values
+    private static long percentile(long[] sorted, double fraction){
+        int rank = (int) Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    // Keeps the transform update and culling work realistic: every entity turns every step
+    @Override
+    public void update(Window window, Scene scene, long diffTimeMillis){
+        rotation += 0.02f;
+        for (Entity entity : entities){
+            entity.setRotation(0, 1, 0, rotation);
+        }
+    }
+}
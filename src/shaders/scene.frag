@@ -4,13 +4,14 @@ in vec2 outTextCoord;
 
 out vec4 fragColor;
 
-struct Material{
+// Per material data, SceneRender.MATERIAL_DATA_BINDING
+layout (std140, binding=1) uniform MaterialData{
     vec4 diffuse;
-};
+} material;
 
-uniform sampler2D txtSampler;
-uniform Material material;
+uniform sampler2DArray txtSampler;
+uniform int textureLayer;
 
 void main(){
-    fragColor = texture(txtSampler, outTextCoord) + material.diffuse;
+    fragColor = texture(txtSampler, vec3(outTextCoord, textureLayer)) + material.diffuse;
 }
\ No newline at end of file
@@ -2,12 +2,16 @@
 
 layout (location=0) in vec3 position;
 layout (location=1) in vec2 texCoord;
+// Per instance attribute, occupies locations 2 to 5
+layout (location=2) in mat4 modelMatrix;
 
 out vec2 outTextCoord;
 
-uniform mat4 projectionMatrix;
-uniform mat4 viewMatrix;
-uniform mat4 modelMatrix;
+// Per frame data, SceneRender.FRAME_DATA_BINDING
+layout (std140, binding=0) uniform FrameData{
+    mat4 projectionMatrix;
+    mat4 viewMatrix;
+};
 
 void main(){
     gl_Position = projectionMatrix * viewMatrix * modelMatrix * vec4(position, 1.0);
@@ -0,0 +1,22 @@
+#version 460
+
+in vec2 outTextCoord;
+flat in int outDrawId;
+
+out vec4 fragColor;
+
+struct DrawData{
+    vec4 diffuse;
+    int textureLayer;
+};
+
+layout (std430, binding=0) readonly buffer DrawDataBuffer{
+    DrawData drawData[];
+};
+
+uniform sampler2DArray txtSampler;
+
+void main(){
+    fragColor = texture(txtSampler, vec3(outTextCoord, drawData[outDrawId].textureLayer)) +
+            drawData[outDrawId].diffuse;
+}
\ No newline at end of file
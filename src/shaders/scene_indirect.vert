@@ -0,0 +1,23 @@
+#version 460
+
+layout (location=0) in vec3 position;
+layout (location=1) in vec2 texCoord;
+// Per instance attribute, occupies locations 2 to 5
+layout (location=2) in mat4 modelMatrix;
+
+out vec2 outTextCoord;
+flat out int outDrawId;
+
+// Per frame data, SceneRender.FRAME_DATA_BINDING
+layout (std140, binding=0) uniform FrameData{
+    mat4 projectionMatrix;
+    mat4 viewMatrix;
+};
+// Index of the first draw of the current multi draw call in the draw data buffer
+uniform int drawOffset;
+
+void main(){
+    gl_Position = projectionMatrix * viewMatrix * modelMatrix * vec4(position, 1.0);
+    outTextCoord = texCoord;
+    outDrawId = drawOffset + gl_DrawID;
+}
\ No newline at end of file